@@ -1,3 +1,5 @@
+import org.jetbrains.kotlin.gradle.tasks.KotlinCompile
+
 plugins {
     java
     kotlin("jvm") version "1.4.10"
@@ -10,6 +12,16 @@ repositories {
     mavenCentral()
 }
 
+sourceSets {
+    create("simulator") {
+        compileClasspath += sourceSets["main"].output
+        runtimeClasspath += sourceSets["main"].output
+    }
+}
+
+configurations["simulatorImplementation"].extendsFrom(configurations.implementation.get())
+configurations["simulatorRuntimeOnly"].extendsFrom(configurations.runtimeOnly.get())
+
 dependencies {
     implementation(kotlin("stdlib"))
 
@@ -21,7 +33,12 @@ dependencies {
     implementation("org.apache.logging.log4j", "log4j-api", "2.8.2")
     implementation("org.apache.logging.log4j", "log4j-core", "2.8.2")
 
+    "simulatorImplementation"("org.glassfish.tyrus:tyrus-server:1.15")
+    "simulatorImplementation"("org.glassfish.tyrus:tyrus-container-grizzly-server:1.15")
+
     testCompile("junit", "junit", "4.12")
+    testImplementation("org.openjdk.jmh", "jmh-core", "1.26")
+    testAnnotationProcessor("org.openjdk.jmh", "jmh-generator-annprocess", "1.26")
 }
 
 tasks {
@@ -31,4 +48,18 @@ tasks {
     compileTestKotlin {
         kotlinOptions.jvmTarget = "1.8"
     }
+    "compileSimulatorKotlin"(KotlinCompile::class) {
+        kotlinOptions.jvmTarget = "1.8"
+    }
+    register<JavaExec>("benchmark") {
+        description = "Runs the JMH benchmark of the queue heap against the previous TreeSet queue"
+        classpath = sourceSets["test"].runtimeClasspath
+        main = "org.openjdk.jmh.Main"
+        args = listOf("CellHeapBenchmark")
+    }
+    register<JavaExec>("simulator") {
+        description = "Runs the local game server simulator"
+        classpath = sourceSets["simulator"].runtimeClasspath
+        main = "darkkeks.pixel2020.SimulatorKt"
+    }
 }
@@ -0,0 +1,155 @@
+package darkkeks.pixel2019;
+
+import java.util.Arrays;
+
+import static darkkeks.pixel2020.PixelApiKt.PIXEL_COUNT;
+
+/**
+ * Indexed binary min-heap of packed cell indices ({@code x + y * FIELD_WIDTH}).
+ * <p>
+ * Cells are ordered by an externally owned priority table, ties are broken by the cell index.
+ * {@code position} maps every cell to its slot in the heap (or -1), so membership is O(1)
+ * and removal of an arbitrary cell is O(log n). Nothing is boxed or allocated after warm-up.
+ * <p>
+ * Both tables may be shared by several heaps, as long as every cell is in at most one of the heaps
+ * sharing a position table. Adding a cell that another heap holds is ignored.
+ * <p>
+ * Not thread safe, callers are expected to synchronize.
+ */
+final class CellHeap {
+
+    private static final int ABSENT = -1;
+
+    private final long[] priority;
+    private final int[] position;
+    private int[] heap;
+    private int size;
+
+    CellHeap(long[] priority) {
+        this(priority, newPositionTable());
+    }
+
+    CellHeap(long[] priority, int[] position) {
+        this.priority = priority;
+        this.position = position;
+        this.heap = new int[1024];
+    }
+
+    static int[] newPositionTable() {
+        int[] position = new int[PIXEL_COUNT];
+        Arrays.fill(position, ABSENT);
+        return position;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(int cell) {
+        int index = position[cell];
+        return index != ABSENT && index < size && heap[index] == cell;
+    }
+
+    void add(int cell) {
+        if (position[cell] != ABSENT) return;
+        append(cell);
+        siftUp(size - 1);
+    }
+
+    /**
+     * Adds a cell without restoring the heap order, {@link #heapify()} must be called afterwards.
+     */
+    void append(int cell) {
+        if (position[cell] != ABSENT) return;
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, Math.min(PIXEL_COUNT, size * 2));
+        }
+        heap[size] = cell;
+        position[cell] = size;
+        size++;
+    }
+
+    void heapify() {
+        for (int i = size / 2 - 1; i >= 0; --i) {
+            siftDown(i);
+        }
+    }
+
+    boolean remove(int cell) {
+        if (!contains(cell)) return false;
+        removeAt(position[cell]);
+        return true;
+    }
+
+    /**
+     * @return cell with the smallest priority, or -1 if the heap is empty
+     */
+    int poll() {
+        if (size == 0) return ABSENT;
+        int result = heap[0];
+        removeAt(0);
+        return result;
+    }
+
+    void clear() {
+        for (int i = 0; i < size; ++i) {
+            position[heap[i]] = ABSENT;
+        }
+        size = 0;
+    }
+
+    private void removeAt(int index) {
+        int removed = heap[index];
+        position[removed] = ABSENT;
+        size--;
+        if (index == size) return;
+
+        int last = heap[size];
+        heap[index] = last;
+        position[last] = index;
+        siftDown(index);
+        if (heap[index] == last) {
+            siftUp(index);
+        }
+    }
+
+    private void siftUp(int index) {
+        int cell = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            int parentCell = heap[parent];
+            if (!less(cell, parentCell)) break;
+            heap[index] = parentCell;
+            position[parentCell] = index;
+            index = parent;
+        }
+        heap[index] = cell;
+        position[cell] = index;
+    }
+
+    private void siftDown(int index) {
+        int cell = heap[index];
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int childCell = heap[child];
+            int right = child + 1;
+            if (right < size && less(heap[right], childCell)) {
+                child = right;
+                childCell = heap[child];
+            }
+            if (!less(childCell, cell)) break;
+            heap[index] = childCell;
+            position[childCell] = index;
+            index = child;
+        }
+        heap[index] = cell;
+        position[cell] = index;
+    }
+
+    private boolean less(int a, int b) {
+        long pa = priority[a];
+        long pb = priority[b];
+        return pa < pb || (pa == pb && a < b);
+    }
+}
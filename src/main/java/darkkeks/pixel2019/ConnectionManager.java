@@ -0,0 +1,173 @@
+package darkkeks.pixel2019;
+
+import darkkeks.pixel2020.BotHandler;
+import darkkeks.pixel2020.Credentials;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Paces account connections, so that a server restart doesn't make every account hit
+ * {@code /start} and the websocket endpoint at the same moment.
+ * <p>
+ * Connection attempts (the {@code /start} call together with the handshake) are limited by a token bucket
+ * and by the number of attempts in flight. Waiting attempts are served in order, priority ones
+ * (the observer) first. Failed attempts and reconnects are retried with exponential backoff and jitter,
+ * the backoff of an account is reset once it stays connected for a while.
+ */
+public class ConnectionManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionManager.class);
+
+    private static final double RATE_PER_SECOND = 5;
+    private static final double BURST = 10;
+    private static final int MAX_IN_FLIGHT = 10;
+    private static final long BASE_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(2);
+    private static final long STABLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final ScheduledExecutorService executor;
+    private final Function<Credentials, CompletableFuture<BotHandler>> connector;
+    private final Map<Credentials, Backoff> backoffs;
+
+    private final PriorityQueue<Attempt> waiting;
+    private long sequence;
+    private int inFlight;
+    private double tokens;
+    private long refilledAt;
+    private boolean drainScheduled;
+
+    public ConnectionManager(ScheduledExecutorService executor,
+                             Function<Credentials, CompletableFuture<BotHandler>> connector) {
+        this.executor = executor;
+        this.connector = connector;
+        this.backoffs = new ConcurrentHashMap<>();
+        this.waiting = new PriorityQueue<>();
+        this.tokens = BURST;
+        this.refilledAt = System.nanoTime();
+    }
+
+    /**
+     * Connects the account as soon as the rate limit allows, retrying until it succeeds.
+     */
+    public CompletableFuture<BotHandler> connect(Credentials credentials, boolean priority) {
+        Attempt attempt = new Attempt(credentials, priority);
+        submit(attempt);
+        return attempt.result;
+    }
+
+    /**
+     * Connects the account again after a backoff delay, which grows if the account keeps getting disconnected.
+     */
+    public CompletableFuture<BotHandler> reconnect(Credentials credentials, boolean priority) {
+        Attempt attempt = new Attempt(credentials, priority);
+        Backoff backoff = backoffs.computeIfAbsent(credentials, c -> new Backoff());
+        if (System.nanoTime() - backoff.connectedAt > STABLE_NANOS) {
+            backoff.failures = 0;
+        }
+        retry(attempt, backoff);
+        return attempt.result;
+    }
+
+    private void retry(Attempt attempt, Backoff backoff) {
+        long delay = Math.min(BASE_BACKOFF_MILLIS << Math.min(backoff.failures, 20), MAX_BACKOFF_MILLIS);
+        backoff.failures++;
+        // Equal jitter: at least half of the delay, so retries of different accounts spread out
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        logger.info("Connecting " + attempt.credentials + " in " + delay + "ms");
+        executor.schedule(() -> submit(attempt), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void submit(Attempt attempt) {
+        attempt.sequence = sequence++;
+        waiting.add(attempt);
+        drain();
+    }
+
+    private synchronized void drain() {
+        long now = System.nanoTime();
+        tokens = Math.min(BURST, tokens + (now - refilledAt) * RATE_PER_SECOND / TimeUnit.SECONDS.toNanos(1));
+        refilledAt = now;
+
+        while (!waiting.isEmpty() && inFlight < MAX_IN_FLIGHT && tokens >= 1) {
+            tokens--;
+            inFlight++;
+            Attempt attempt = waiting.poll();
+            executor.execute(() -> start(attempt));
+        }
+
+        // Attempts finishing wake up the queue themselves, only waiting for tokens needs a timer
+        if (!waiting.isEmpty() && inFlight < MAX_IN_FLIGHT && !drainScheduled) {
+            long delay = (long) ((1 - tokens) * TimeUnit.SECONDS.toNanos(1) / RATE_PER_SECOND);
+            drainScheduled = true;
+            executor.schedule(() -> {
+                synchronized (this) {
+                    drainScheduled = false;
+                    drain();
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void start(Attempt attempt) {
+        CompletableFuture<BotHandler> connection;
+        try {
+            connection = connector.apply(attempt.credentials);
+        } catch (Exception e) {
+            connection = CompletableFuture.failedFuture(e);
+        }
+
+        connection.whenComplete((account, e) -> {
+            synchronized (this) {
+                inFlight--;
+                drain();
+            }
+
+            Backoff backoff = backoffs.computeIfAbsent(attempt.credentials, c -> new Backoff());
+            if (e == null) {
+                backoff.connectedAt = System.nanoTime();
+                attempt.result.complete(account);
+            } else {
+                logger.error("Failed to connect " + attempt.credentials, e);
+                retry(attempt, backoff);
+            }
+        });
+    }
+
+    public synchronized int getWaiting() {
+        return waiting.size();
+    }
+
+    private static class Backoff {
+        volatile int failures;
+        volatile long connectedAt = System.nanoTime() - STABLE_NANOS;
+    }
+
+    private static class Attempt implements Comparable<Attempt> {
+
+        final Credentials credentials;
+        final boolean priority;
+        final CompletableFuture<BotHandler> result;
+        long sequence;
+
+        Attempt(Credentials credentials, boolean priority) {
+            this.credentials = credentials;
+            this.priority = priority;
+            this.result = new CompletableFuture<>();
+        }
+
+        @Override
+        public int compareTo(Attempt other) {
+            if (priority != other.priority) return priority ? -1 : 1;
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
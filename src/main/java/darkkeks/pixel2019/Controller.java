@@ -5,53 +5,100 @@ import kotlin.Unit;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.awt.*;
-import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.net.http.HttpClient;
+import java.nio.file.Path;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
-import static darkkeks.pixel2020.PixelApiKt.FIELD_HEIGHT;
 import static darkkeks.pixel2020.PixelApiKt.FIELD_WIDTH;
 
 public class Controller {
 
     private static final Logger logger = LoggerFactory.getLogger(Controller.class);
 
+    private static final Path BOARD_CACHE_PATH = Path.of("board.cache");
+    private static final long MAX_CACHE_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long SNAPSHOT_RETRY_SECONDS = 5;
+
     private final HttpClient httpClient;
-    private final PixelQueue queue;
-    private Template template;
-    private BotHandler observer;
+    private final PixelOrder order;
+    private final boolean griefedFirst;
+    private volatile BotHandler observer;
+
+    /**
+     * Current queue, together with the templates it was built for. Replaced as a whole on template reload.
+     */
+    private volatile PixelQueue queue;
+    private final AtomicReference<TemplateSet> pendingTemplates;
+    private final AtomicInteger templateVersion;
+    private final ExecutorService templateLoader;
 
-    private final BoardGraphics graphics;
+    private final Board board;
+    private final BoardCache boardCache;
+    /**
+     * Board sequence when the cache was last touched, so that the cache only looks fresh if the board changed.
+     */
+    private long cachedSequence;
+    private final PixelLog pixelLog;
+    private final BoardView view;
 
     private final Set<BotHandler> accounts;
+    private final Set<BotHandler> idle;
     private final ScheduledThreadPoolExecutor executor;
+    private final CooldownScheduler cooldowns;
+    private final ConnectionManager connections;
 
     private final HealthCheck healthCheck;
-    private int lastMinuteStats;
+    private long confirmedBeforeMinute;
 
-    private final BlockingQueue<Integer> speedQueue;
-    
-    private static boolean needQueueRebuild = false;
 
-    public Controller(Credentials observerCredentials, Template template) {
-        this.template = template;
+    /**
+     * @param viewFactory creates a view of the board, {@link BoardView#HEADLESS} to run without a display
+     * @param pixelLog    log for the observed pixel stream, or null
+     */
+    public Controller(Credentials observerCredentials, TemplateSet templates, PixelOrder order, boolean griefedFirst,
+                      Function<Board, BoardView> viewFactory, PixelLog pixelLog) {
+        this.order = order;
+        this.griefedFirst = griefedFirst;
+        this.pendingTemplates = new AtomicReference<>();
+        this.templateVersion = new AtomicInteger();
+        this.templateLoader = Executors.newSingleThreadExecutor();
         this.accounts = ConcurrentHashMap.newKeySet();
-
-        this.speedQueue = new ArrayBlockingQueue<>(128);
+        this.idle = ConcurrentHashMap.newKeySet();
 
         executor = new ScheduledThreadPoolExecutor(24);
-        graphics = new BoardGraphics(new BufferedImage(FIELD_WIDTH, FIELD_HEIGHT, BufferedImage.TYPE_INT_RGB));
-        graphics.updateTemplate(template);
+        executor.setRemoveOnCancelPolicy(true);
+        cooldowns = new CooldownScheduler(executor, this::place);
+        connections = new ConnectionManager(executor, this::connectAccount);
+        board = new Board();
+        view = viewFactory.apply(board);
+        view.updateTemplate(templates);
         httpClient = HttpClient.newHttpClient();
 
         healthCheck = new HealthCheck();
-        queue = new PixelQueue(template);
+        queue = new PixelQueue(templates, order, griefedFirst);
 
-        startTicker();
+        boardCache = openBoardCache();
+        this.pixelLog = pixelLog;
+        if (boardCache != null) {
+            long age = System.currentTimeMillis() - boardCache.getTimestamp();
+            if (age < MAX_CACHE_AGE_MILLIS && boardCache.load(board)) {
+                logger.info("Board loaded from cache, age: " + TimeUnit.MILLISECONDS.toSeconds(age) + "s");
+                queue.rebuild(board);
+            }
+        }
+        cachedSequence = board.getSequence();
+
+        Metrics.gauge("pixel_accounts", "Connected accounts", accounts::size);
+        Metrics.gauge("pixel_accounts_idle", "Accounts waiting for the queue to get pixels", idle::size);
+        Metrics.gauge("pixel_accounts_connecting", "Accounts waiting to connect", connections::getWaiting);
+        Metrics.gauge("pixel_queue_size", "Template cells that differ from the board", () -> this.queue.size());
 
-        addAccount(observerCredentials).thenAccept(account -> {
+        connections.connect(observerCredentials, true).thenAccept(account -> {
             observer = account;
             hookObserver();
         });
@@ -61,115 +108,259 @@ public class Controller {
 
     private void runBot() {
         executor.scheduleAtFixedRate(() -> {
+            PixelQueue queue = this.queue;
             String output = String.format("Accounts active: %5d, queue size: %5d", accounts.size(), queue.size());
-            
-            if (needQueueRebuild) {
-                queue.rebuild(graphics.getImage());
-            }
-
-            speedQueue.offer(queue.size());
-            if(speedQueue.size() > 60) {
-                int prev = speedQueue.poll();
-                output += String.format(", current speed: %5.2f pixels/second", (prev - queue.size()) / 60d);
+            TemplateSet templates = queue.getTemplates();
+            if (templates.getLayerCount() > 1) {
+                StringBuilder layers = new StringBuilder();
+                for (int i = 0; i < templates.getLayerCount(); ++i) {
+                    layers.append(i == 0 ? " (" : ", ")
+                            .append(templates.getLayers().get(i).name)
+                            .append(": ")
+                            .append(queue.size(i));
+                }
+                output += layers.append(")");
             }
 
             logger.info(output);
 
-            try {
-                accounts.forEach(account -> {
-                    if (account.getCanPlace()) {
-                        if (queue.size() > 0) {
-                            PixelQueue.Point point = queue.pop();
-                            Color color = template.getColorAbs(point.getX(), point.getY());
-                            logger.info("Placing pixel x=" + point.getX() + ", y=" + point.getY());
-                            Pixel pixel = new Pixel(point.getX(), point.getY(), color);
-                            CompletableFuture.supplyAsync(() -> {
-                                healthCheck.onPlace(pixel, account.getCredentials());
-                                try {
-                                    return account.sendPixel(pixel).get();
-                                } catch (InterruptedException | ExecutionException e) {
-                                    e.printStackTrace();
-                                }
-                                return null;
-                            }, executor).thenRun(() -> {
-                                executor.schedule(() -> {
-                                    if (healthCheck.checkHealth(pixel)) {
-                                        lastMinuteStats++;
-                                    }
-                                }, 20, TimeUnit.SECONDS);
-                            });
-                        }
-                    }
-                });
-            } catch (Exception e) {
-                logger.error("Exception sending pixel", e);
+            healthCheck.tick();
+            long sequence = board.getSequence();
+            if (boardCache != null && sequence != cachedSequence) {
+                cachedSequence = sequence;
+                boardCache.touch();
             }
+            dispatchIdle();
         }, 0, 1, TimeUnit.SECONDS);
 
         executor.scheduleAtFixedRate(() -> {
-            logger.info("Rebuilding queue");
-            queue.rebuild(graphics.getImage());
+            logger.info("Reconciling queue");
+            queue.reconcile(board);
         }, 0, 30, TimeUnit.SECONDS);
 
         executor.scheduleAtFixedRate(() -> {
-            logger.info("Placed during last minute: " + lastMinuteStats);
-            lastMinuteStats = 0;
+            long confirmed = Metrics.PLACEMENTS_CONFIRMED.get();
+            logger.info("Placed during last minute: " + (confirmed - confirmedBeforeMinute));
+            confirmedBeforeMinute = confirmed;
+
+            logger.info("Websocket " + WebsocketContainer.INSTANCE.stats());
+
+            healthCheck.allStats().forEach((credentials, stats) -> {
+                if (stats.getConfirmRate() < 0.5) {
+                    logger.warn("Unhealthy account " + credentials + ": " + stats);
+                }
+            });
         }, 0, 60, TimeUnit.SECONDS);
     }
 
-    private void startTicker() {
-        executor.scheduleAtFixedRate(() -> {
-            accounts.forEach(BotHandler::tick);
-        }, 0, 1, TimeUnit.SECONDS);
+    private void place(BotHandler account) {
+        if (!accounts.contains(account)) return;
+        if (!account.getCanPlace()) {
+            cooldowns.schedule(account);
+            return;
+        }
+
+        AccountStats stats = healthCheck.stats(account.getCredentials());
+        long quarantine = stats.getQuarantineNanos();
+        if (quarantine > 0) {
+            cooldowns.schedule(account, quarantine);
+            return;
+        }
+
+        PixelQueue queue;
+        int cell;
+        do {
+            queue = this.queue;
+            cell = queue.pop(stats.isFast());
+            if (cell < 0) {
+                idle.add(account);
+                return;
+            }
+            // Templates were swapped while popping, the cell belongs to the old version
+        } while (queue != this.queue);
+
+        Pixel pixel = null;
+        try {
+            int x = cell % FIELD_WIDTH;
+            int y = cell / FIELD_WIDTH;
+            int colorId = queue.getTemplates().getColorId(cell);
+            logger.info("Placing pixel x=" + x + ", y=" + y);
+            pixel = new Pixel(x, y, colorId);
+            // Tracked before sending, the board feed can confirm the pixel before the send completes
+            healthCheck.onPlace(pixel, account.getCredentials());
+            Pixel sent = pixel;
+            account.sendPixel(pixel).thenRun(Metrics.PLACEMENTS_SENT::increment).exceptionally(e -> {
+                onSendFailed(account, sent, e);
+                return null;
+            });
+        } catch (Exception e) {
+            onSendFailed(account, pixel, e);
+        }
+    }
+
+    private void onSendFailed(BotHandler account, Pixel pixel, Throwable e) {
+        logger.error("Exception sending pixel", e);
+        Metrics.PLACEMENTS_FAILED.increment();
+        if (pixel != null) {
+            healthCheck.onSendFailed(pixel, account.getCredentials());
+        }
+        idle.add(account);
+    }
+
+    /**
+     * Hands queued pixels to accounts that were ready while the queue was empty.
+     */
+    private void dispatchIdle() {
+        for (BotHandler account : idle) {
+            if (this.queue.isEmpty()) return;
+            if (idle.remove(account)) {
+                place(account);
+            }
+        }
     }
 
     private void reconnect(BotHandler account) {
+        healthCheck.stats(account.getCredentials()).onReconnect();
+        Metrics.RECONNECTS.increment();
         accounts.remove(account);
-        executor.schedule(() -> {
-            addAccount(account.getCredentials()).thenAccept(newAccount -> {
-                if (account == observer) {
-                    observer = newAccount;
-                    hookObserver();
-                }
-            });
-        }, 5, TimeUnit.SECONDS);
+        idle.remove(account);
+        cooldowns.cancel(account);
+        boolean isObserver = account == observer;
+
+        PixelEvents.Reconnect event = new PixelEvents.Reconnect();
+        if (event.shouldCommit()) {
+            event.account = account.getCredentials().toString();
+            event.observer = isObserver;
+            event.commit();
+        }
+        connections.reconnect(account.getCredentials(), isObserver).thenAccept(newAccount -> {
+            if (isObserver) {
+                observer = newAccount;
+                hookObserver();
+            }
+        });
     }
 
     public CompletableFuture<BotHandler> addAccount(Credentials credentials) {
+        return connections.connect(credentials, false);
+    }
+
+    private CompletableFuture<BotHandler> connectAccount(Credentials credentials) {
         BotHandler account = new BotHandler(credentials, httpClient);
         account.setCloseHandler(() -> {
             this.reconnect(account);
             return Unit.INSTANCE;
         });
+        account.setCooldownHandler(a -> {
+            cooldowns.schedule(a);
+            return Unit.INSTANCE;
+        });
         return account.connect().thenApply(v -> {
             accounts.add(account);
+            cooldowns.schedule(account);
             return account;
         });
     }
 
     private void hookObserver() {
-        observer.getPixelApi().data().thenAccept(board -> {
-            graphics.updateBoard(board);
-            queue.rebuild(board);
+        requestSnapshot(observer);
+
+        observer.setBatchHandler(batch -> {
+            onPixels(batch);
+            return Unit.INSTANCE;
         });
+    }
 
-        observer.setPixelHandler(pixel -> {
-            healthCheck.onPixel(pixel);
-            queue.onPixelChange(pixel);
-            if (graphics != null) {
-                graphics.setPixel(pixel.getX(), pixel.getY(), pixel.getColor());
+    /**
+     * Loads the board from {@code /data}, retrying while the account is still the observer.
+     */
+    private void requestSnapshot(BotHandler account) {
+        board.expectSnapshot();
+        account.getPixelApi().data().thenAccept(snapshot -> {
+            logger.info("Board received, frozen cells: " + snapshot.getFrozen().cardinality());
+            board.load(snapshot.getColors());
+            if (boardCache != null) {
+                boardCache.save(board);
             }
-            return Unit.INSTANCE;
+            this.queue.rebuild(board);
+        }).exceptionally(e -> {
+            logger.error("Failed to load board, retrying in " + SNAPSHOT_RETRY_SECONDS + "s", e);
+            executor.schedule(() -> {
+                if (account == observer) {
+                    requestSnapshot(account);
+                }
+            }, SNAPSHOT_RETRY_SECONDS, TimeUnit.SECONDS);
+            return null;
         });
     }
-    
-    public void updateTemplate(Template newTemplate) {
-        template = newTemplate;
-        graphics.updateTemplate(template);
-        requestQueueRebuild();
+
+    private void onPixels(PixelBatch batch) {
+        board.set(batch);
+        if (boardCache != null) {
+            int[] cells = batch.getCell();
+            byte[] colors = batch.getColor();
+            for (int i = 0; i < batch.getSize(); ++i) {
+                boardCache.set(cells[i], colors[i]);
+            }
+        }
+
+        if (pixelLog != null) {
+            try {
+                pixelLog.append(batch, System.currentTimeMillis());
+            } catch (IOException e) {
+                logger.error("Can't write pixel log", e);
+            }
+        }
+
+        PixelQueue queue = this.queue;
+        healthCheck.onPixels(batch);
+        queue.onPixels(batch);
+
+        if (!idle.isEmpty() && !queue.isEmpty()) {
+            executor.execute(this::dispatchIdle);
+        }
     }
     
-    public static void requestQueueRebuild() {
-        Controller.needQueueRebuild = true;
+    private static BoardCache openBoardCache() {
+        try {
+            return BoardCache.open(BOARD_CACHE_PATH);
+        } catch (IOException e) {
+            logger.error("Can't open board cache, running without it", e);
+            return null;
+        }
+    }
+
+    /**
+     * Builds a queue for new templates in background and swaps it in.
+     * Reloads requested while a build is in progress are coalesced, only the latest templates get built.
+     */
+    public void updateTemplate(TemplateSet newTemplates) {
+        if (pendingTemplates.getAndSet(newTemplates) == null) {
+            templateLoader.execute(this::swapTemplates);
+        }
+    }
+
+    private void swapTemplates() {
+        TemplateSet templates = pendingTemplates.getAndSet(null);
+        if (templates == null) return;
+
+        try {
+            PixelQueue newQueue = new PixelQueue(templates, order, griefedFirst);
+            newQueue.rebuild(board);
+
+            // Pixels received from now on go to the new queue, the ones received
+            // during rebuild are picked up by revalidating the whole template once
+            queue = newQueue;
+            newQueue.invalidate();
+            newQueue.reconcile(board);
+
+            view.updateTemplate(templates);
+            logger.info("Templates version " + templateVersion.incrementAndGet()
+                    + " loaded, queue size: " + newQueue.size());
+        } catch (Exception e) {
+            logger.error("Failed to load new templates", e);
+        }
+
+        executor.execute(this::dispatchIdle);
     }
 }
@@ -0,0 +1,63 @@
+package darkkeks.pixel2019;
+
+import darkkeks.pixel2020.BotHandler;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Fires a callback for an account the moment its cooldown expires.
+ * <p>
+ * Every account has at most one pending task in the executor delay queue,
+ * rescheduling an account replaces its previous task.
+ */
+public class CooldownScheduler {
+
+    private final ScheduledExecutorService executor;
+    private final Consumer<BotHandler> onReady;
+    private final Map<BotHandler, ScheduledFuture<?>> pending;
+
+    public CooldownScheduler(ScheduledExecutorService executor, Consumer<BotHandler> onReady) {
+        this.executor = executor;
+        this.onReady = onReady;
+        this.pending = new ConcurrentHashMap<>();
+    }
+
+    public void schedule(BotHandler account) {
+        schedule(account, account.getCooldownNanos());
+    }
+
+    /**
+     * Schedules the account after a delay, for example to hold it back while it is quarantined.
+     */
+    public void schedule(BotHandler account, long delayNanos) {
+        long delay = Math.max(delayNanos, 0);
+        // Replaced under the map lock: a task with a short delay can fire and reschedule the account
+        // before a plain put returns, which would then cancel the newer task.
+        pending.compute(account, (key, previous) -> {
+            if (previous != null) {
+                previous.cancel(false);
+            }
+            return executor.schedule(() -> fire(key), delay, TimeUnit.NANOSECONDS);
+        });
+    }
+
+    public void cancel(BotHandler account) {
+        ScheduledFuture<?> previous = pending.remove(account);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    private void fire(BotHandler account) {
+        if (!account.getCanPlace()) {
+            schedule(account);
+            return;
+        }
+        onReady.accept(account);
+    }
+}
@@ -0,0 +1,76 @@
+package darkkeks.pixel2019;
+
+import darkkeks.pixel2020.TemplateSet;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Static placement order of template cells.
+ * <p>
+ * Cells with lower level are placed first, cells within the same level are placed in random order.
+ * Levels are computed once per queue, so implementations don't have to be fast.
+ */
+public interface PixelOrder {
+
+    int level(TemplateSet templates, int x, int y);
+
+    PixelOrder RANDOM = (templates, x, y) -> 0;
+
+    /**
+     * Outline first: cells whose color differs from one of their neighbours.
+     */
+    PixelOrder EDGES = (templates, x, y) -> {
+        int color = templates.getColorId(x, y);
+        boolean edge = color != templates.getColorId(x - 1, y)
+                || color != templates.getColorId(x + 1, y)
+                || color != templates.getColorId(x, y - 1)
+                || color != templates.getColorId(x, y + 1);
+        return edge ? 0 : 1;
+    };
+
+    /**
+     * Closest to the focus point first.
+     */
+    static PixelOrder focus(int focusX, int focusY) {
+        return (templates, x, y) -> {
+            int dx = x - focusX;
+            int dy = y - focusY;
+            return (int) Math.sqrt(dx * dx + dy * dy);
+        };
+    }
+
+    /**
+     * Brightest first, according to the importance image in board coordinates.
+     * Transparent cells and cells outside of the image go last.
+     */
+    static PixelOrder importance(BufferedImage importance) {
+        return (templates, x, y) -> {
+            if (x >= importance.getWidth() || y >= importance.getHeight()) return 256;
+
+            int argb = importance.getRGB(x, y);
+            if ((argb >>> 24) < 40) return 256;
+
+            int r = (argb >> 16) & 0xFF;
+            int g = (argb >> 8) & 0xFF;
+            int b = argb & 0xFF;
+            return 255 - (r * 299 + g * 587 + b * 114) / 1000;
+        };
+    }
+
+    /**
+     * Parses order from configuration: {@code random}, {@code edges}, {@code focus:x,y} or {@code importance}.
+     */
+    static PixelOrder parse(String value, BufferedImage importance) {
+        if (value == null || value.equals("random")) return RANDOM;
+        if (value.equals("edges")) return EDGES;
+        if (value.equals("importance")) {
+            if (importance == null) throw new IllegalArgumentException("Importance image is missing");
+            return importance(importance);
+        }
+        if (value.startsWith("focus:")) {
+            String[] parts = value.substring("focus:".length()).split(",");
+            return focus(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+        }
+        throw new IllegalArgumentException("Unknown pixel order: " + value);
+    }
+}
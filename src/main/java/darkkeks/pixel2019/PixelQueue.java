@@ -1,113 +1,298 @@
 package darkkeks.pixel2019;
 
-import darkkeks.pixel2020.Pixel;
+import darkkeks.pixel2020.Board;
+import darkkeks.pixel2020.Metrics;
+import darkkeks.pixel2020.PixelEvents;
+import darkkeks.pixel2020.PixelBatch;
 import darkkeks.pixel2020.Template;
+import darkkeks.pixel2020.TemplateSet;
 
-import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.util.Comparator;
-import java.util.Map;
-import java.util.Objects;
-import java.util.TreeSet;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.BitSet;
 import java.util.concurrent.ThreadLocalRandom;
 
-import static darkkeks.pixel2020.PixelApiKt.FIELD_HEIGHT;
-import static darkkeks.pixel2020.PixelApiKt.FIELD_WIDTH;
+import static darkkeks.pixel2020.PixelApiKt.*;
 
+/**
+ * Queue of board cells that differ from the template.
+ * <p>
+ * Cells are identified by the packed index {@code x + y * FIELD_WIDTH} and popped by
+ * {@link PixelOrder} level first and in random order within a level. Both are packed into a single
+ * {@code long} key per cell, fixed for the lifetime of the queue.
+ * <p>
+ * Every template layer has its own lanes, and {@link #pop()} picks a layer by smooth weighted round-robin
+ * over layer shares, so placements are split between layers proportionally while they have work.
+ * Every cell belongs to a single layer and lane, so all lanes share one heap position table.
+ * <p>
+ * With {@code griefedFirst}, cells that were correct and got overwritten by the pixel stream are kept
+ * in a separate lane, otherwise griefed lanes aren't created. Accounts popping with {@code contestedFirst} drain it before the main one,
+ * the rest only get to it once the main lane of the layer is empty.
+ * <p>
+ * The pixel stream keeps the queue and a mismatch bitmap up to date, so the only cells the queue can be
+ * wrong about are popped ones whose placement never showed up. Popped cells are tracked in two generations:
+ * {@link #reconcile} re-validates the cells popped before the previous reconciliation and leaves the recent
+ * ones alone, as they are most likely still in flight. Cells in flight aren't re-enqueued by the stream either,
+ * so that another account doesn't place them again.
+ */
 public class PixelQueue {
 
-    private Template template;
-    private TreeSet<Point> queue;
-    private Map<Point, Integer> order;
+    private final TemplateSet templates;
+    private final long[] order;
+    private final CellHeap[] queue;
+    /**
+     * Null unless {@code griefedFirst}.
+     */
+    private final CellHeap[] griefed;
+    private final double[] shares;
+    private final double[] credit;
+    private final BitSet mismatch;
+    private BitSet popped;
+    private BitSet poppedBefore;
+    private boolean invalidated;
 
-    public PixelQueue(Template template) {
-        this.template = template;
-        this.queue = new TreeSet<>(Comparator.comparingInt(p -> order.get(p)));
+    public PixelQueue(TemplateSet templates) {
+        this(templates, PixelOrder.RANDOM, false);
+    }
+
+    public PixelQueue(TemplateSet templates, PixelOrder pixelOrder, boolean griefedFirst) {
+        this.templates = templates;
 
-        this.order = new ConcurrentHashMap<>();
-        for(int i = 0; i < FIELD_WIDTH; ++i) {
-            for(int j = 0; j < FIELD_HEIGHT; ++j) {
-                order.put(new Point(i, j), ThreadLocalRandom.current().nextInt());
+        this.order = new long[PIXEL_COUNT];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int y = 0; y < FIELD_HEIGHT; ++y) {
+            for (int x = 0; x < FIELD_WIDTH; ++x) {
+                long level = templates.getColorId(x, y) != Template.NONE ? pixelOrder.level(templates, x, y) : 0;
+                order[x + y * FIELD_WIDTH] = (level << 32) | (random.nextInt() & 0xFFFFFFFFL);
             }
         }
+
+        int layers = templates.getLayerCount();
+        int[] position = CellHeap.newPositionTable();
+        this.queue = new CellHeap[layers];
+        this.griefed = griefedFirst ? new CellHeap[layers] : null;
+        this.shares = new double[layers];
+        this.credit = new double[layers];
+        for (int i = 0; i < layers; ++i) {
+            queue[i] = new CellHeap(order, position);
+            if (griefed != null) {
+                griefed[i] = new CellHeap(order, position);
+            }
+            shares[i] = templates.getLayers().get(i).share;
+        }
+
+        this.mismatch = new BitSet(PIXEL_COUNT);
+        this.popped = new BitSet(PIXEL_COUNT);
+        this.poppedBefore = new BitSet(PIXEL_COUNT);
     }
 
-    public synchronized void rebuild(BufferedImage currentBoard) {
-        queue.clear();
-        java.awt.Point offset = template.getOffset();
-        
-        for (Template.TemplatePixel pixel : template.getPixels())
-            if (pixel.color != null
-                    && currentBoard.getRGB(offset.x + pixel.x, offset.y + pixel.y) != pixel.color.getRGB())
-                queue.add(new Point(offset.x + pixel.x, offset.y + pixel.y));
-        
-        //for(int i = 0; i < Constants.WIDTH; ++i) {
-        //    for(int j = 0; j < Constants.HEIGHT; ++j) {
-        //        Color target = template.getColor(i, j);
-        //        if(target != null && currentBoard.getRGB(i, j) != target.getRGB()) {
-        //            queue.add(new Point(i, j));
-        //        }
-        //    }
-        //}
-    }
-
-    public synchronized void onPixelChange(Pixel pixel) {
-        Color target = template.getColorAbs(pixel.getX(), pixel.getY());
-        if(target == null) return;
-
-        Color color = pixel.getColor();
-        if(color == target) {
-            queue.remove(new Point(pixel.getX(), pixel.getY()));
+    public TemplateSet getTemplates() {
+        return templates;
+    }
+
+    public synchronized void rebuild(Board currentBoard) {
+        long start = System.nanoTime();
+        PixelEvents.RebuildQueue event = new PixelEvents.RebuildQueue();
+        event.begin();
+        for (int i = 0; i < queue.length; ++i) {
+            queue[i].clear();
+            if (griefed != null) {
+                griefed[i].clear();
+            }
+        }
+        mismatch.clear();
+        popped.clear();
+        poppedBefore.clear();
+        invalidated = false;
+
+        for (int y = 0; y < FIELD_HEIGHT; ++y) {
+            for (int span = 0; span < templates.getSpanCount(y); ++span) {
+                int to = templates.getSpanEnd(y, span);
+                for (int x = templates.getSpanStart(y, span); x < to; ++x) {
+                    int cell = x + y * FIELD_WIDTH;
+                    if (currentBoard.get(cell) != templates.getColorId(cell)) {
+                        mismatch.set(cell);
+                        queue[templates.getOwner(cell)].append(cell);
+                    }
+                }
+            }
+        }
+        for (CellHeap lane : queue) {
+            lane.heapify();
+        }
+        Metrics.QUEUE_REBUILD.record(System.nanoTime() - start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.size = size();
+            event.commit();
+        }
+    }
+
+    /**
+     * Re-validates cells popped before the previous reconciliation, or the whole template after
+     * {@link #invalidate()}. Cells that are still wrong on the board get back into the queue.
+     */
+    public synchronized void reconcile(Board currentBoard) {
+        if (invalidated) {
+            invalidated = false;
+            for (int y = 0; y < FIELD_HEIGHT; ++y) {
+                for (int span = 0; span < templates.getSpanCount(y); ++span) {
+                    int to = templates.getSpanEnd(y, span);
+                    for (int x = templates.getSpanStart(y, span); x < to; ++x) {
+                        validate(x + y * FIELD_WIDTH, currentBoard);
+                    }
+                }
+            }
         } else {
-            queue.add(new Point(pixel.getX(), pixel.getY()));
+            for (int cell = poppedBefore.nextSetBit(0); cell >= 0; cell = poppedBefore.nextSetBit(cell + 1)) {
+                validate(cell, currentBoard);
+            }
         }
+
+        BitSet expired = poppedBefore;
+        expired.clear();
+        poppedBefore = popped;
+        popped = expired;
     }
 
-    public synchronized Point pop() {
-        Point result = queue.first();
-        queue.remove(result);
-        return result;
+    private void validate(int cell, Board currentBoard) {
+        if (popped.get(cell)) return;
+        if (currentBoard.get(cell) != templates.getColorId(cell)) {
+            mismatch.set(cell);
+            enqueue(cell);
+        } else {
+            mismatch.clear(cell);
+            dequeue(cell);
+        }
     }
 
-    public boolean isEmpty() {
-        return queue.isEmpty();
+    /**
+     * Makes the next {@link #reconcile} re-validate the whole template.
+     */
+    public synchronized void invalidate() {
+        invalidated = true;
     }
 
-    public int size() {
-        return queue.size();
+    public synchronized void onPixels(PixelBatch batch) {
+        int[] cells = batch.getCell();
+        byte[] colors = batch.getColor();
+        for (int i = 0; i < batch.getSize(); ++i) {
+            onPixelChange(cells[i], colors[i]);
+        }
     }
 
-    public static class Point {
-        private int x;
-        private int y;
+    private void onPixelChange(int cell, int colorId) {
+        int target = templates.getColorId(cell);
+        if (target == Template.NONE) return;
 
-        public Point(int x, int y) {
-            this.x = x;
-            this.y = y;
+        if (colorId == target) {
+            mismatch.clear(cell);
+            popped.clear(cell);
+            poppedBefore.clear(cell);
+            dequeue(cell);
+        } else if (popped.get(cell)) {
+            // Our placement is still in flight and will overwrite this
+            mismatch.set(cell);
+        } else if (griefed != null && !mismatch.get(cell)) {
+            int layer = templates.getOwner(cell);
+            mismatch.set(cell);
+            queue[layer].remove(cell);
+            griefed[layer].add(cell);
+        } else {
+            mismatch.set(cell);
+            poppedBefore.clear(cell);
+            enqueue(cell);
         }
+    }
 
-        public int getX() {
-            return x;
+    private void enqueue(int cell) {
+        // Does nothing if the cell is in the griefed lane, the lanes share the position table
+        queue[templates.getOwner(cell)].add(cell);
+    }
+
+    private void dequeue(int cell) {
+        int layer = templates.getOwner(cell);
+        if (!queue[layer].remove(cell) && griefed != null) {
+            griefed[layer].remove(cell);
         }
+    }
 
-        public int getY() {
-            return y;
+    /**
+     * @return next cell to place, or -1 if the queue is empty
+     */
+    public int pop() {
+        return pop(true);
+    }
+
+    /**
+     * @param contestedFirst whether to take griefed cells before the rest of the template.
+     *                       Slow accounts leave contested cells to the fast ones, unless nothing else is left.
+     * @return next cell to place, or -1 if the queue is empty
+     */
+    public int pop(boolean contestedFirst) {
+        PixelEvents.PopQueue event = new PixelEvents.PopQueue();
+        event.begin();
+        int cell = poll(contestedFirst);
+        event.end();
+        if (event.shouldCommit()) {
+            event.cell = cell;
+            event.commit();
         }
+        return cell;
+    }
+
+    private synchronized int poll(boolean contestedFirst) {
+        int layer = nextLayer();
+        if (layer < 0) return -1;
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            Point point = (Point) o;
-            return x == point.x &&
-                    y == point.y;
+        int cell;
+        if (griefed == null) {
+            cell = queue[layer].poll();
+        } else {
+            CellHeap first = contestedFirst ? griefed[layer] : queue[layer];
+            CellHeap second = contestedFirst ? queue[layer] : griefed[layer];
+            cell = first.poll();
+            if (cell < 0) {
+                cell = second.poll();
+            }
+        }
+        if (cell >= 0) {
+            popped.set(cell);
         }
+        return cell;
+    }
+
+    /**
+     * Smooth weighted round-robin among layers that have work.
+     */
+    private int nextLayer() {
+        int best = -1;
+        double total = 0;
+        for (int i = 0; i < queue.length; ++i) {
+            if (size(i) == 0) continue;
+            credit[i] += shares[i];
+            total += shares[i];
+            if (best < 0 || credit[i] > credit[best]) {
+                best = i;
+            }
+        }
+        if (best >= 0) {
+            credit[best] -= total;
+        }
+        return best;
+    }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(x, y);
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int size() {
+        int result = 0;
+        for (int i = 0; i < queue.length; ++i) {
+            result += size(i);
         }
+        return result;
     }
 
+    public int size(int layer) {
+        return queue[layer].size() + (griefed == null ? 0 : griefed[layer].size());
+    }
 }
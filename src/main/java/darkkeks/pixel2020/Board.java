@@ -0,0 +1,127 @@
+package darkkeks.pixel2020;
+
+import java.util.Arrays;
+
+import static darkkeks.pixel2020.PixelApiKt.FIELD_HEIGHT;
+import static darkkeks.pixel2020.PixelApiKt.FIELD_WIDTH;
+import static darkkeks.pixel2020.PixelApiKt.PIXEL_COUNT;
+
+/**
+ * Canonical board state, one palette index per cell packed as {@code x + y * FIELD_WIDTH}.
+ * <p>
+ * Pixels are written by the observer feed, snapshots are loaded from an HTTP client thread,
+ * so writes synchronize on the board. Readers don't lock: writes to the byte array are published
+ * by the volatile sequence, which is bumped after every change, so a reader that reads
+ * {@link #getSequence()} first sees everything written before it.
+ * <p>
+ * A snapshot is older than the pixels that arrived while it was being fetched. Pixels written between
+ * {@link #expectSnapshot()} and {@link #load} are recorded and applied again on top of the snapshot.
+ * <p>
+ * Writes also mark the {@link #TILE_SIZE} square tiles they touch, so a view can redraw only what changed.
+ */
+public class Board {
+
+    public static final int TILE_SIZE = 16;
+    public static final int TILES_X = (FIELD_WIDTH + TILE_SIZE - 1) / TILE_SIZE;
+    public static final int TILES_Y = (FIELD_HEIGHT + TILE_SIZE - 1) / TILE_SIZE;
+    public static final int TILE_COUNT = TILES_X * TILES_Y;
+
+    private final byte[] cells;
+    private volatile long sequence;
+
+    /**
+     * Pixels written since the pending snapshot was requested, or null.
+     */
+    private PixelBatch sinceSnapshot;
+
+    /**
+     * Bitset of tiles written since the last {@link #drainDirtyTiles}.
+     */
+    private final long[] dirtyTiles;
+
+    public Board() {
+        this.cells = new byte[PIXEL_COUNT];
+        this.dirtyTiles = new long[(TILE_COUNT + 63) / 64];
+    }
+
+    public int get(int cell) {
+        return cells[cell];
+    }
+
+    public int get(int x, int y) {
+        return cells[x + y * FIELD_WIDTH];
+    }
+
+    public synchronized void set(int cell, int color) {
+        cells[cell] = (byte) color;
+        markDirty(cell);
+        if (sinceSnapshot != null) {
+            sinceSnapshot.add(cell, (byte) color, (byte) 0, 0, 0);
+        }
+        sequence++;
+    }
+
+    public synchronized void set(PixelBatch batch) {
+        int[] batchCells = batch.getCell();
+        byte[] colors = batch.getColor();
+        for (int i = 0; i < batch.getSize(); ++i) {
+            cells[batchCells[i]] = colors[i];
+            markDirty(batchCells[i]);
+        }
+        if (sinceSnapshot != null) {
+            for (int i = 0; i < batch.getSize(); ++i) {
+                sinceSnapshot.add(batchCells[i], colors[i], (byte) 0, 0, 0);
+            }
+        }
+        sequence++;
+    }
+
+    /**
+     * Starts recording pixels for the snapshot about to be requested. Call before sending the request.
+     */
+    public synchronized void expectSnapshot() {
+        sinceSnapshot = new PixelBatch();
+    }
+
+    /**
+     * Replaces the whole board with a snapshot, then applies pixels written since {@link #expectSnapshot()}.
+     */
+    public synchronized void load(byte[] snapshot) {
+        if (snapshot.length != PIXEL_COUNT) {
+            throw new IllegalArgumentException("Invalid snapshot size: " + snapshot.length);
+        }
+        System.arraycopy(snapshot, 0, cells, 0, PIXEL_COUNT);
+        if (sinceSnapshot != null) {
+            int[] recordedCells = sinceSnapshot.getCell();
+            byte[] colors = sinceSnapshot.getColor();
+            for (int i = 0; i < sinceSnapshot.getSize(); ++i) {
+                cells[recordedCells[i]] = colors[i];
+            }
+            sinceSnapshot = null;
+        }
+        Arrays.fill(dirtyTiles, -1L);
+        sequence++;
+    }
+
+    private void markDirty(int cell) {
+        int tile = (cell % FIELD_WIDTH) / TILE_SIZE + (cell / FIELD_WIDTH / TILE_SIZE) * TILES_X;
+        dirtyTiles[tile >>> 6] |= 1L << tile;
+    }
+
+    /**
+     * Moves the set of tiles written since the previous call into {@code target} (a bitset of
+     * {@link #TILE_COUNT} bits, tile index is {@code tileX + tileY * TILES_X}) and clears it.
+     */
+    public synchronized void drainDirtyTiles(long[] target) {
+        System.arraycopy(dirtyTiles, 0, target, 0, dirtyTiles.length);
+        Arrays.fill(dirtyTiles, 0);
+    }
+
+    public void copyTo(byte[] target) {
+        System.arraycopy(cells, 0, target, 0, PIXEL_COUNT);
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+}
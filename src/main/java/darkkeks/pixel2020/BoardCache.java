@@ -0,0 +1,88 @@
+package darkkeks.pixel2020;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static darkkeks.pixel2020.PixelApiKt.PIXEL_COUNT;
+
+/**
+ * Board persisted in a memory-mapped file, so that a restart can start placing before the board is fetched.
+ * <p>
+ * The file is a header (magic and wall clock time of the last update) followed by
+ * a palette index per cell. Cells are written through the mapping as they arrive from the pixel stream,
+ * the page cache takes care of getting them to disk.
+ */
+public class BoardCache {
+
+    private static final int MAGIC = 0x50584C32;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int TIMESTAMP_OFFSET = 4;
+    private static final int HEADER_SIZE = 12;
+
+    private final MappedByteBuffer buffer;
+
+    private BoardCache(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    public static BoardCache open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            return new BoardCache(channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + PIXEL_COUNT));
+        }
+    }
+
+    /**
+     * @return wall clock time of the last update in milliseconds, or -1 if the cache is empty
+     */
+    public synchronized long getTimestamp() {
+        if (buffer.getInt(MAGIC_OFFSET) != MAGIC) return -1;
+        return buffer.getLong(TIMESTAMP_OFFSET);
+    }
+
+    /**
+     * Loads cached cells into the board.
+     *
+     * @return false if there is nothing cached
+     */
+    public synchronized boolean load(Board board) {
+        if (buffer.getInt(MAGIC_OFFSET) != MAGIC) return false;
+
+        byte[] cells = new byte[PIXEL_COUNT];
+        ByteBuffer data = buffer.duplicate();
+        data.position(HEADER_SIZE);
+        data.get(cells);
+        board.load(cells);
+        return true;
+    }
+
+    /**
+     * Replaces the whole cache with the board.
+     */
+    public synchronized void save(Board board) {
+        byte[] cells = new byte[PIXEL_COUNT];
+        board.copyTo(cells);
+
+        ByteBuffer data = buffer.duplicate();
+        data.position(HEADER_SIZE);
+        data.put(cells);
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        touch();
+    }
+
+    public void set(int cell, int color) {
+        buffer.put(HEADER_SIZE + cell, (byte) color);
+    }
+
+    /**
+     * Records the current time after a series of {@link #set} calls.
+     */
+    public synchronized void touch() {
+        buffer.putLong(TIMESTAMP_OFFSET, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,111 @@
+package darkkeks.pixel2020
+
+import java.net.http.HttpResponse
+import java.nio.ByteBuffer
+import java.util.BitSet
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionStage
+import java.util.concurrent.Flow
+
+/**
+ * Board as returned by `/data`: palette index per cell and the set of frozen cells.
+ */
+class BoardSnapshot(val colors: ByteArray, val frozen: BitSet)
+
+/**
+ * Decodes `/data` response straight from the incoming chunks, without materializing the body.
+ *
+ * The body is [PIXEL_COUNT] color chars (`0-9a-z`), followed by the frozen tail,
+ * which lists frozen cells as decimal cell indices separated by non-digit characters.
+ */
+class BoardSnapshotSubscriber : HttpResponse.BodySubscriber<BoardSnapshot> {
+
+    private val result = CompletableFuture<BoardSnapshot>()
+    private val colors = ByteArray(PIXEL_COUNT)
+    private val frozen = BitSet(PIXEL_COUNT)
+    private val chunk = ByteArray(8192)
+
+    private var subscription: Flow.Subscription? = null
+    private var position = 0
+    private var number = NO_NUMBER
+
+    override fun getBody(): CompletionStage<BoardSnapshot> = result
+
+    override fun onSubscribe(subscription: Flow.Subscription) {
+        this.subscription = subscription
+        subscription.request(Long.MAX_VALUE)
+    }
+
+    override fun onNext(item: List<ByteBuffer>) {
+        if (result.isDone) return
+        try {
+            item.forEach { decode(it) }
+        } catch (e: Exception) {
+            subscription?.cancel()
+            result.completeExceptionally(e)
+        }
+    }
+
+    override fun onError(throwable: Throwable) {
+        result.completeExceptionally(throwable)
+    }
+
+    override fun onComplete() {
+        if (result.isDone) return
+        if (position < PIXEL_COUNT) {
+            result.completeExceptionally(IllegalStateException("Truncated board snapshot: $position cells"))
+            return
+        }
+        endNumber()
+        result.complete(BoardSnapshot(colors, frozen))
+    }
+
+    private fun decode(buffer: ByteBuffer) {
+        while (buffer.hasRemaining()) {
+            val length = minOf(buffer.remaining(), chunk.size)
+            buffer.get(chunk, 0, length)
+
+            var i = 0
+            while (i < length && position < PIXEL_COUNT) {
+                val id = CHAR_TO_ID[chunk[i].toInt() and 0xFF]
+                if (id < 0) error("Invalid board char at $position: ${chunk[i]}")
+                colors[position++] = id
+                i++
+            }
+            while (i < length) {
+                decodeFrozen(chunk[i])
+                i++
+            }
+        }
+    }
+
+    private fun decodeFrozen(b: Byte) {
+        val digit = b - '0'.toByte()
+        if (digit in 0..9) {
+            number = if (number == NO_NUMBER) digit else number * 10 + digit
+            if (number >= PIXEL_COUNT) error("Invalid frozen cell: $number")
+        } else {
+            endNumber()
+        }
+    }
+
+    private fun endNumber() {
+        if (number != NO_NUMBER) {
+            frozen.set(number)
+            number = NO_NUMBER
+        }
+    }
+
+    companion object {
+        private const val NO_NUMBER = -1
+
+        private val CHAR_TO_ID = ByteArray(256) { -1 }.also { table ->
+            for (id in Colors.PALETTE.indices) {
+                val c = if (id < 10) '0' + id else 'a' + (id - 10)
+                table[c.toInt()] = id.toByte()
+            }
+        }
+
+        val HANDLER = HttpResponse.BodyHandler { BoardSnapshotSubscriber() }
+    }
+}
@@ -0,0 +1,20 @@
+package darkkeks.pixel2020
+
+/**
+ * Presentation of the board. Views read the [Board] on their own schedule,
+ * the controller only tells them about template changes.
+ */
+interface BoardView {
+
+    fun updateTemplate(templates: TemplateSet)
+
+    companion object {
+        /**
+         * View for running without a display, doesn't touch AWT or Swing.
+         */
+        @JvmField
+        val HEADLESS: BoardView = object : BoardView {
+            override fun updateTemplate(templates: TemplateSet) {}
+        }
+    }
+}
@@ -6,7 +6,7 @@ import java.net.http.HttpClient
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
 import java.util.concurrent.CompletableFuture
-import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
 
 class BotHandler(
     val credentials: Credentials, httpClient: HttpClient
@@ -18,20 +18,47 @@ class BotHandler(
     private var client: WebsocketClient? = null
 
     private var ttl = 0
-    private var wait = 0
 
-    var pixelHandler: ((Pixel) -> Unit)? = null
+    /**
+     * [System.nanoTime] at which the account cooldown expires.
+     */
+    @Volatile
+    private var readyAt = System.nanoTime()
+
+    /**
+     * Whether the server has sent the cooldown yet. Until then the account doesn't place.
+     */
+    @Volatile
+    private var cooldownKnown = false
+
+    private val batch = PixelBatch()
+
+    /**
+     * Board feed consumer. Only the observer sets it, frames on other accounts are dropped undecoded.
+     */
+    var batchHandler: ((PixelBatch) -> Unit)? = null
+
+    override val acceptsBinary get() = batchHandler != null
     var closeHandler: (() -> Unit)? = null
 
-    val canPlace: Boolean get() {
-        println(wait)
-        return wait <= 0
-    }
+    /**
+     * Called whenever the cooldown changes, either from the server or after sending a pixel.
+     */
+    var cooldownHandler: ((BotHandler) -> Unit)? = null
 
-    fun tick() {
-        if (wait > 0) {
-            wait -= 1000
-        }
+    val canPlace: Boolean get() = cooldownNanos <= 0
+
+    /**
+     * Remaining cooldown in nanoseconds, non-positive when the account can place.
+     * Before the server sent the cooldown this is the interval to check again.
+     */
+    val cooldownNanos: Long
+        get() = if (cooldownKnown) readyAt - System.nanoTime() else UNKNOWN_COOLDOWN_NANOS
+
+    private fun setCooldown(millis: Int) {
+        readyAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis.toLong())
+        cooldownKnown = true
+        cooldownHandler?.invoke(this)
     }
 
     fun start(): CompletableFuture<ConnectionData> {
@@ -46,8 +73,8 @@ class BotHandler(
         }
     }
 
-    fun sendPixel(pixel: Pixel): Future<Void> {
-        if (!canPlace) error("Wait > 0: $wait")
+    fun sendPixel(pixel: Pixel): CompletableFuture<Void> {
+        if (!canPlace) error("Wait > 0: ${TimeUnit.NANOSECONDS.toMillis(cooldownNanos)}")
 
         logger.info("Sending pixel x={}, y={}", pixel.x, pixel.y)
 
@@ -56,10 +83,21 @@ class BotHandler(
         buffer.putInt(pixel.pack())
         buffer.flip()
 
-        wait = ttl
+        // A zero ttl means the server didn't send one, don't let the account place in a tight loop
+        setCooldown(if (ttl > 0) ttl else DEFAULT_TTL_MILLIS)
 
         val c = client ?: error("No client ?!")
-        return c.sendBinary(buffer)
+        val event = PixelEvents.SendPixel()
+        event.begin()
+        return c.sendBinary(buffer).whenComplete { _, _ ->
+            event.end()
+            if (event.shouldCommit()) {
+                event.account = credentials.toString()
+                event.cell = pixel.x + pixel.y * FIELD_WIDTH
+                event.color = pixel.colorId
+                event.commit()
+            }
+        }
     }
 
     override fun handleMessage(message: String) {
@@ -88,12 +126,14 @@ class BotHandler(
         when (type) {
             2 -> {
                 val result = value.asJsonObject
-                if (result.has("wait")) {
-                    wait = result["wait"].asInt
-                }
                 if (result.has("ttl")) {
                     ttl = result["ttl"].asInt
                 }
+                if (result.has("wait")) {
+                    setCooldown(result["wait"].asInt)
+                } else if (!cooldownKnown) {
+                    setCooldown(0)
+                }
             }
             3 -> {
                 logger.info("Server asked for a restart :)")
@@ -110,16 +150,28 @@ class BotHandler(
         }
     }
 
-    override fun handleBinaryMessage(buffer: ByteArray) {
-        val message = ByteBuffer.wrap(buffer)
-        message.order(ByteOrder.LITTLE_ENDIAN)
-        for (i in 0 until buffer.size / 3 / 4) {
-            val pixel = unpack(message.int, message.int, message.int)
-            pixelHandler?.invoke(pixel)
+    override fun handleBinaryMessage(buffer: ByteBuffer) {
+        val handler = batchHandler ?: return
+        val event = PixelEvents.DecodeFrame()
+        event.begin()
+        buffer.order(ByteOrder.LITTLE_ENDIAN)
+        batch.decode(buffer)
+        Metrics.FRAMES_DECODED.increment()
+        Metrics.UPDATES_DECODED.add(batch.size.toLong())
+        handler(batch)
+        event.end()
+        if (event.shouldCommit()) {
+            event.size = batch.size
+            event.commit()
         }
     }
 
     override fun onClose() {
         closeHandler?.invoke()
     }
+
+    companion object {
+        private const val DEFAULT_TTL_MILLIS = 1000
+        private val UNKNOWN_COOLDOWN_NANOS = TimeUnit.SECONDS.toNanos(1)
+    }
 }
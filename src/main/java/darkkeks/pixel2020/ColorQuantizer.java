@@ -0,0 +1,113 @@
+package darkkeks.pixel2020;
+
+/**
+ * Maps arbitrary ARGB colors to the nearest palette index through a precomputed 32x32x32 RGB cube.
+ * <p>
+ * Each cube cell holds the palette color nearest to the cell center. Cells containing an exact
+ * palette color are pinned to it, so colors already in the palette always map to themselves.
+ */
+public final class ColorQuantizer {
+
+    public static final int TRANSPARENT = -1;
+
+    private static final int ALPHA_THRESHOLD = 40;
+    private static final int BITS = 5;
+    private static final int SIZE = 1 << BITS;
+    private static final int SHIFT = 8 - BITS;
+
+    private static ColorQuantizer euclidean;
+    private static ColorQuantizer perceptual;
+
+    private final byte[] cube;
+
+    private ColorQuantizer(boolean lab) {
+        int[] palette = Colors.INSTANCE.getRGB();
+        double[][] points = new double[palette.length][];
+        for (int i = 0; i < palette.length; ++i) {
+            int rgb = palette[i];
+            points[i] = toPoint((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF, lab);
+        }
+
+        cube = new byte[SIZE * SIZE * SIZE];
+        int half = 1 << (SHIFT - 1);
+        for (int r = 0; r < SIZE; ++r) {
+            for (int g = 0; g < SIZE; ++g) {
+                for (int b = 0; b < SIZE; ++b) {
+                    double[] point = toPoint((r << SHIFT) + half, (g << SHIFT) + half, (b << SHIFT) + half, lab);
+                    cube[index(r, g, b)] = (byte) nearest(points, point);
+                }
+            }
+        }
+
+        for (int i = 0; i < palette.length; ++i) {
+            int rgb = palette[i];
+            cube[index(((rgb >> 16) & 0xFF) >> SHIFT, ((rgb >> 8) & 0xFF) >> SHIFT, (rgb & 0xFF) >> SHIFT)] = (byte) i;
+        }
+    }
+
+    public static synchronized ColorQuantizer get(boolean perceptual) {
+        if (perceptual) {
+            if (ColorQuantizer.perceptual == null) ColorQuantizer.perceptual = new ColorQuantizer(true);
+            return ColorQuantizer.perceptual;
+        } else {
+            if (euclidean == null) euclidean = new ColorQuantizer(false);
+            return euclidean;
+        }
+    }
+
+    /**
+     * @return palette index, or {@link #TRANSPARENT} for (almost) transparent colors
+     */
+    public int quantize(int argb) {
+        if ((argb >>> 24) < ALPHA_THRESHOLD) return TRANSPARENT;
+        int r = (argb >> 16) & 0xFF;
+        int g = (argb >> 8) & 0xFF;
+        int b = argb & 0xFF;
+        return cube[index(r >> SHIFT, g >> SHIFT, b >> SHIFT)];
+    }
+
+    private static int index(int r, int g, int b) {
+        return (r << (2 * BITS)) | (g << BITS) | b;
+    }
+
+    private static int nearest(double[][] points, double[] point) {
+        int best = 0;
+        double bestDist = Double.MAX_VALUE;
+        for (int i = 0; i < points.length; ++i) {
+            double d0 = points[i][0] - point[0];
+            double d1 = points[i][1] - point[1];
+            double d2 = points[i][2] - point[2];
+            double dist = d0 * d0 + d1 * d1 + d2 * d2;
+            if (dist < bestDist) {
+                best = i;
+                bestDist = dist;
+            }
+        }
+        return best;
+    }
+
+    private static double[] toPoint(int r, int g, int b, boolean lab) {
+        if (!lab) return new double[]{r, g, b};
+
+        double lr = linear(r);
+        double lg = linear(g);
+        double lb = linear(b);
+        double x = (0.4124 * lr + 0.3576 * lg + 0.1805 * lb) / 0.95047;
+        double y = 0.2126 * lr + 0.7152 * lg + 0.0722 * lb;
+        double z = (0.0193 * lr + 0.1192 * lg + 0.9505 * lb) / 1.08883;
+
+        double fx = labF(x);
+        double fy = labF(y);
+        double fz = labF(z);
+        return new double[]{116 * fy - 16, 500 * (fx - fy), 200 * (fy - fz)};
+    }
+
+    private static double linear(int channel) {
+        double c = channel / 255.0;
+        return c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4);
+    }
+
+    private static double labF(double t) {
+        return t > 216.0 / 24389 ? Math.cbrt(t) : (24389.0 / 27 * t + 16) / 116;
+    }
+}
@@ -1,26 +1,380 @@
 package darkkeks.pixel2020
 
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
 
+/**
+ * Tracks placed pixels until they show up in the board feed.
+ *
+ * Pending placements are keyed by `(cell, color)` packed into a long. Every placement is also put into
+ * a ring of one-second expiry buckets, and [tick] sweeps a single bucket per second, so placements
+ * that weren't confirmed within [TIMEOUT_SECONDS] are counted against their account.
+ */
 class HealthCheck {
 
-    private val toConfirm: MutableMap<Pixel, Credentials> = ConcurrentHashMap()
+    private val logger = createLogger<HealthCheck>()
 
-    fun onPixel(pixel: Pixel) {
-        toConfirm.remove(pixel)
+    private val pending = PendingPlacements()
+    private val buckets = Array(TIMEOUT_SECONDS + 1) { LongArray(16) }
+    private val bucketSizes = IntArray(TIMEOUT_SECONDS + 1)
+    private var tick = 0
+
+    private val stats: MutableMap<Credentials, AccountStats> = ConcurrentHashMap()
+
+    fun stats(credentials: Credentials): AccountStats = stats.computeIfAbsent(credentials) { AccountStats() }
+
+    fun allStats(): Map<Credentials, AccountStats> = stats
+
+    @Synchronized
+    fun onPixels(batch: PixelBatch) {
+        if (pending.size == 0) return
+        val cells = batch.cell
+        val colors = batch.color
+        val now = System.nanoTime()
+        for (i in 0 until batch.size) {
+            val slot = pending.find(key(cells[i], colors[i].toInt()))
+            if (slot < 0) continue
+
+            val latency = now - pending.placedAt(slot)
+            pending.account(slot).onConfirmed(latency)
+            pending.removeAt(slot)
+            Metrics.PLACEMENTS_CONFIRMED.increment()
+            Metrics.CONFIRM_LATENCY.record(latency)
+        }
     }
 
+    @Synchronized
     fun onPlace(pixel: Pixel, credentials: Credentials) {
-        toConfirm[pixel] = credentials
+        val account = stats(credentials)
+        account.onPlaced()
+
+        val key = key(pixel)
+        val deadline = tick + TIMEOUT_SECONDS
+        pending.put(key, account, System.nanoTime(), deadline)
+
+        val bucket = deadline % buckets.size
+        if (bucketSizes[bucket] == buckets[bucket].size) {
+            buckets[bucket] = buckets[bucket].copyOf(bucketSizes[bucket] * 2)
+        }
+        buckets[bucket][bucketSizes[bucket]++] = key
+    }
+
+    /**
+     * Forgets a placement whose send failed, so local or network errors don't count as expirations.
+     */
+    @Synchronized
+    fun onSendFailed(pixel: Pixel, credentials: Credentials) {
+        val account = stats(credentials)
+        val slot = pending.find(key(pixel))
+        // The same pixel might have been placed by another account since
+        if (slot < 0 || pending.account(slot) !== account) return
+
+        pending.removeAt(slot)
+        account.onSendFailed()
+    }
+
+    /**
+     * Expires placements that weren't confirmed in time. Must be called once per second.
+     */
+    @Synchronized
+    fun tick() {
+        tick++
+        val bucket = tick % buckets.size
+        val keys = buckets[bucket]
+        var expired = 0
+        for (i in 0 until bucketSizes[bucket]) {
+            val slot = pending.find(keys[i])
+            // The same pixel might have been placed again later, then it expires in a later bucket
+            if (slot < 0 || pending.deadline(slot) != tick) continue
+
+            pending.account(slot).onExpired()
+            pending.removeAt(slot)
+            Metrics.PLACEMENTS_EXPIRED.increment()
+            expired++
+        }
+        bucketSizes[bucket] = 0
+
+        if (expired > 0) {
+            logger.info("Placements not confirmed in {} seconds: {}", TIMEOUT_SECONDS, expired)
+        }
+
+        val now = System.nanoTime()
+        stats.forEach { (credentials, account) ->
+            if (account.evaluate(now)) {
+                logger.warn("Account quarantined for {} seconds: {} ({})",
+                    TimeUnit.NANOSECONDS.toSeconds(account.quarantineNanos), credentials, account)
+            }
+        }
+        if (tick % RANK_INTERVAL == 0) {
+            rankByLatency()
+        }
+    }
+
+    /**
+     * Marks accounts with median confirmation latency not above the median among all accounts as fast.
+     * Accounts without enough confirmations keep their previous mark.
+     */
+    private fun rankByLatency() {
+        val measured = stats.values.filter { it.latencySamples >= MIN_LATENCY_SAMPLES }
+        if (measured.isEmpty()) return
+
+        val medians = measured.map { it.latencyPercentile(0.5) }.sorted()
+        val threshold = medians[(medians.size - 1) / 2]
+        measured.forEach { it.isFast = it.latencyPercentile(0.5) <= threshold }
+    }
+
+    private fun key(pixel: Pixel) = key(pixel.x + pixel.y * FIELD_WIDTH, pixel.colorId)
+
+    private fun key(cell: Int, color: Int) = cell.toLong() shl 8 or color.toLong()
+
+    companion object {
+        const val TIMEOUT_SECONDS = 20
+        private const val RANK_INTERVAL = 60
+        private const val MIN_LATENCY_SAMPLES = 10
+    }
+}
+
+/**
+ * Placement outcomes of a single account, kept across reconnects.
+ *
+ * Accounts whose placements mostly don't get confirmed are quarantined, then let back on probation.
+ * Quarantine length doubles every time the account fails probation, and resets once it recovers.
+ */
+class AccountStats {
+
+    @Volatile
+    var placed = 0L
+        private set
+
+    @Volatile
+    var confirmed = 0L
+        private set
+
+    @Volatile
+    var expired = 0L
+        private set
+
+    /**
+     * Exponentially weighted share of recent placements that got confirmed.
+     */
+    @Volatile
+    var confirmRate = 1.0
+        private set
+
+    @Volatile
+    var reconnects = 0
+        private set
+
+    /**
+     * Whether the account confirms faster than most, such accounts take contested cells first.
+     */
+    @Volatile
+    var isFast = true
+        internal set
+
+    /**
+     * Confirmation latency histogram, bucket `i` counts latencies below `2^i` milliseconds.
+     */
+    private val latency = IntArray(LATENCY_BUCKETS)
+
+    var latencySamples = 0
+        private set
+
+    /**
+     * Outcomes since the account was let out of quarantine (or since it was created).
+     */
+    private var outcomes = 0
+    private var quarantines = 0
+
+    @Volatile
+    private var quarantinedUntil = System.nanoTime()
+
+    /**
+     * Remaining quarantine in nanoseconds, non-positive when the account may place.
+     */
+    val quarantineNanos: Long get() = quarantinedUntil - System.nanoTime()
+
+    internal fun onPlaced() {
+        placed++
     }
 
-    fun checkHealth(pixel: Pixel): Boolean {
-        val credentials = toConfirm.remove(pixel)
-        if (credentials != null) {
-            println("Unhealthy account! $credentials")
+    internal fun onSendFailed() {
+        placed--
+    }
+
+    @Synchronized
+    internal fun onConfirmed(latencyNanos: Long) {
+        confirmed++
+        outcomes++
+        confirmRate += (1 - confirmRate) * RATE_WEIGHT
+
+        val millis = TimeUnit.NANOSECONDS.toMillis(latencyNanos)
+        val bucket = 64 - java.lang.Long.numberOfLeadingZeros(millis)
+        latency[minOf(bucket, LATENCY_BUCKETS - 1)]++
+        latencySamples++
+    }
+
+    internal fun onExpired() {
+        expired++
+        outcomes++
+        confirmRate -= confirmRate * RATE_WEIGHT
+    }
+
+    @Synchronized
+    fun onReconnect() {
+        reconnects++
+    }
+
+    /**
+     * @return upper bound of the latency percentile in milliseconds
+     */
+    @Synchronized
+    fun latencyPercentile(fraction: Double): Long {
+        var remaining = (latencySamples * fraction).toLong()
+        for (i in latency.indices) {
+            remaining -= latency[i]
+            if (remaining < 0) return 1L shl i
+        }
+        return 1L shl (LATENCY_BUCKETS - 1)
+    }
+
+    /**
+     * Updates quarantine state.
+     *
+     * @return true if the account just got quarantined
+     */
+    internal fun evaluate(now: Long): Boolean {
+        if (quarantinedUntil - now > 0 || outcomes < MIN_OUTCOMES) return false
+
+        if (confirmRate >= HEALTHY_RATE) {
+            quarantines = 0
             return false
         }
+        if (confirmRate >= QUARANTINE_RATE) return false
+
+        val seconds = QUARANTINE_SECONDS shl minOf(quarantines, MAX_QUARANTINE_SHIFT)
+        quarantinedUntil = now + TimeUnit.SECONDS.toNanos(seconds)
+        quarantines++
+        outcomes = 0
+        confirmRate = PROBATION_RATE
         return true
     }
 
+    override fun toString(): String {
+        return String.format(
+            "placed=%d, confirmed=%d, expired=%d, rate=%.2f, latency p50=%dms p90=%dms, reconnects=%d",
+            placed, confirmed, expired, confirmRate,
+            latencyPercentile(0.5), latencyPercentile(0.9), reconnects
+        )
+    }
+
+    companion object {
+        private const val RATE_WEIGHT = 0.1
+        private const val LATENCY_BUCKETS = 17
+        private const val MIN_OUTCOMES = 10
+        private const val QUARANTINE_RATE = 0.3
+        private const val PROBATION_RATE = 0.5
+        private const val HEALTHY_RATE = 0.9
+        private const val QUARANTINE_SECONDS = 300L
+        private const val MAX_QUARANTINE_SHIFT = 4
+    }
+}
+
+/**
+ * Open addressing hash map from packed pixel key to the pending placement,
+ * with linear probing and backward shift deletion, so no tombstones are left behind.
+ */
+internal class PendingPlacements {
+
+    private var keys = LongArray(1024) { EMPTY }
+    private var accounts = arrayOfNulls<AccountStats>(1024)
+    private var placedAt = LongArray(1024)
+    private var deadlines = IntArray(1024)
+    private var mask = 1023
+
+    var size = 0
+        private set
+
+    /**
+     * @return slot of the key, or -1 if absent
+     */
+    fun find(key: Long): Int {
+        var slot = hash(key)
+        while (true) {
+            val current = keys[slot]
+            if (current == key) return slot
+            if (current == EMPTY) return -1
+            slot = (slot + 1) and mask
+        }
+    }
+
+    fun account(slot: Int) = accounts[slot]!!
+
+    fun placedAt(slot: Int) = placedAt[slot]
+
+    fun deadline(slot: Int) = deadlines[slot]
+
+    fun put(key: Long, account: AccountStats, time: Long, deadline: Int) {
+        if (2 * (size + 1) > keys.size) resize()
+
+        var slot = hash(key)
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) and mask
+        }
+        if (keys[slot] == EMPTY) size++
+        keys[slot] = key
+        accounts[slot] = account
+        placedAt[slot] = time
+        deadlines[slot] = deadline
+    }
+
+    fun removeAt(slot: Int) {
+        var hole = slot
+        var next = (hole + 1) and mask
+        while (keys[next] != EMPTY) {
+            val home = hash(keys[next])
+            // Move the entry into the hole unless its home slot lies cyclically in (hole, next]
+            if ((next - home and mask) >= (next - hole and mask)) {
+                keys[hole] = keys[next]
+                accounts[hole] = accounts[next]
+                placedAt[hole] = placedAt[next]
+                deadlines[hole] = deadlines[next]
+                hole = next
+            }
+            next = (next + 1) and mask
+        }
+        keys[hole] = EMPTY
+        accounts[hole] = null
+        size--
+    }
+
+    private fun resize() {
+        val oldKeys = keys
+        val oldAccounts = accounts
+        val oldPlacedAt = placedAt
+        val oldDeadlines = deadlines
+
+        val capacity = oldKeys.size * 2
+        keys = LongArray(capacity) { EMPTY }
+        accounts = arrayOfNulls(capacity)
+        placedAt = LongArray(capacity)
+        deadlines = IntArray(capacity)
+        mask = capacity - 1
+        size = 0
+
+        for (i in oldKeys.indices) {
+            if (oldKeys[i] != EMPTY) {
+                put(oldKeys[i], oldAccounts[i]!!, oldPlacedAt[i], oldDeadlines[i])
+            }
+        }
+    }
+
+    private fun hash(key: Long): Int {
+        val h = key * -0x61c8864680b583ebL
+        return (h xor (h ushr 32)).toInt() and mask
+    }
+
+    companion object {
+        private const val EMPTY = -1L
+    }
 }
@@ -0,0 +1,244 @@
+package darkkeks.pixel2020;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide metrics registry, rendered in Prometheus text format.
+ * <p>
+ * Counters are {@link LongAdder}s, so hot paths on many threads don't contend on a single cache line.
+ * Latencies are kept in {@link Summary} instances: log-linear histograms over a rolling one-minute window.
+ */
+public final class Metrics {
+
+    private static final List<Metric> metrics = new CopyOnWriteArrayList<>();
+
+    public static final Counter PLACEMENTS_SENT =
+            counter("pixel_placements_sent_total", "Pixels sent by accounts");
+    public static final Counter PLACEMENTS_FAILED =
+            counter("pixel_placements_failed_total", "Pixels that failed to be sent");
+    public static final Counter PLACEMENTS_CONFIRMED =
+            counter("pixel_placements_confirmed_total", "Sent pixels that showed up in the board feed");
+    public static final Counter PLACEMENTS_EXPIRED =
+            counter("pixel_placements_expired_total", "Sent pixels that didn't show up in the board feed in time");
+    public static final Summary CONFIRM_LATENCY =
+            summary("pixel_confirm_latency_seconds", "Time from sending a pixel to seeing it in the board feed");
+    public static final Counter FRAMES_DECODED =
+            counter("pixel_frames_decoded_total", "Board feed frames decoded");
+    public static final Counter UPDATES_DECODED =
+            counter("pixel_updates_decoded_total", "Pixel updates decoded from the board feed");
+    public static final Summary QUEUE_REBUILD =
+            summary("pixel_queue_rebuild_seconds", "Duration of full queue rebuilds");
+    public static final Counter RECONNECTS =
+            counter("pixel_reconnects_total", "Account reconnects");
+
+    private Metrics() {
+    }
+
+    public static Counter counter(String name, String help) {
+        return register(new Counter(name, help));
+    }
+
+    public static Summary summary(String name, String help) {
+        return register(new Summary(name, help));
+    }
+
+    public static void gauge(String name, String help, LongSupplier value) {
+        register(new Gauge(name, help, value));
+    }
+
+    private static <T extends Metric> T register(T metric) {
+        metrics.removeIf(existing -> existing.name.equals(metric.name));
+        metrics.add(metric);
+        return metric;
+    }
+
+    public static String render() {
+        StringBuilder builder = new StringBuilder();
+        for (Metric metric : metrics) {
+            builder.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            builder.append("# TYPE ").append(metric.name).append(' ').append(metric.type()).append('\n');
+            metric.render(builder);
+        }
+        return builder.toString();
+    }
+
+    private static String format(double value) {
+        if (Double.isNaN(value)) return "NaN";
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    private abstract static class Metric {
+
+        final String name;
+        final String help;
+
+        Metric(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        abstract String type();
+
+        abstract void render(StringBuilder builder);
+    }
+
+    public static final class Counter extends Metric {
+
+        private final LongAdder value = new LongAdder();
+
+        private Counter(String name, String help) {
+            super(name, help);
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long delta) {
+            value.add(delta);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void render(StringBuilder builder) {
+            builder.append(name).append(' ').append(get()).append('\n');
+        }
+    }
+
+    private static final class Gauge extends Metric {
+
+        private final LongSupplier value;
+
+        private Gauge(String name, String help, LongSupplier value) {
+            super(name, help);
+            this.value = value;
+        }
+
+        @Override
+        String type() {
+            return "gauge";
+        }
+
+        @Override
+        void render(StringBuilder builder) {
+            builder.append(name).append(' ').append(value.getAsLong()).append('\n');
+        }
+    }
+
+    /**
+     * Durations over a rolling window, reported as quantiles, plus all-time sum and count.
+     * <p>
+     * The window is a ring of slots, each a histogram with four buckets per power of two microseconds,
+     * so quantiles are precise to 25%. A slot is reset by the first recording after it goes out of the window;
+     * recordings racing with the reset may be lost, which is fine for monitoring and keeps recording lock-free.
+     */
+    public static final class Summary extends Metric {
+
+        private static final int SLOTS = 6;
+        private static final long SLOT_NANOS = TimeUnit.SECONDS.toNanos(10);
+        private static final int SUB_BITS = 2;
+        private static final int BUCKETS = (64 - SUB_BITS) << SUB_BITS;
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+        private final AtomicLong[] epochs = new AtomicLong[SLOTS];
+        private final AtomicLongArray[] counts = new AtomicLongArray[SLOTS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Summary(String name, String help) {
+            super(name, help);
+            for (int i = 0; i < SLOTS; ++i) {
+                epochs[i] = new AtomicLong(Long.MIN_VALUE);
+                counts[i] = new AtomicLongArray(BUCKETS);
+            }
+        }
+
+        public void record(long nanos) {
+            long epoch = Math.floorDiv(System.nanoTime(), SLOT_NANOS);
+            int slot = (int) Math.floorMod(epoch, (long) SLOTS);
+            long previous = epochs[slot].get();
+            if (previous != epoch && epochs[slot].compareAndSet(previous, epoch)) {
+                for (int i = 0; i < BUCKETS; ++i) {
+                    counts[slot].set(i, 0);
+                }
+            }
+            counts[slot].incrementAndGet(bucket(nanos));
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        /**
+         * @return upper bound of the quantile over the window in seconds, or NaN if nothing was recorded
+         */
+        public double quantile(double fraction) {
+            long[] merged = merge();
+            long total = 0;
+            for (long value : merged) {
+                total += value;
+            }
+            if (total == 0) return Double.NaN;
+
+            long remaining = (long) Math.ceil(total * fraction);
+            for (int i = 0; i < BUCKETS; ++i) {
+                remaining -= merged[i];
+                if (remaining <= 0) return upperBound(i) / 1e6;
+            }
+            return upperBound(BUCKETS - 1) / 1e6;
+        }
+
+        private long[] merge() {
+            long current = Math.floorDiv(System.nanoTime(), SLOT_NANOS);
+            long[] merged = new long[BUCKETS];
+            for (int slot = 0; slot < SLOTS; ++slot) {
+                if (current - epochs[slot].get() >= SLOTS) continue;
+                for (int i = 0; i < BUCKETS; ++i) {
+                    merged[i] += counts[slot].get(i);
+                }
+            }
+            return merged;
+        }
+
+        private static int bucket(long nanos) {
+            long micros = Math.max(nanos / 1000, 1L << SUB_BITS);
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) (micros >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+            return ((exponent - SUB_BITS) << SUB_BITS) + sub;
+        }
+
+        private static long upperBound(int bucket) {
+            int exponent = (bucket >>> SUB_BITS) + SUB_BITS;
+            int sub = bucket & ((1 << SUB_BITS) - 1);
+            return ((long) ((1 << SUB_BITS) + sub + 1)) << (exponent - SUB_BITS);
+        }
+
+        @Override
+        String type() {
+            return "summary";
+        }
+
+        @Override
+        void render(StringBuilder builder) {
+            for (double quantile : QUANTILES) {
+                builder.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(format(quantile(quantile))).append('\n');
+            }
+            builder.append(name).append("_sum ").append(format(sumNanos.sum() / 1e9)).append('\n');
+            builder.append(name).append("_count ").append(count.sum()).append('\n');
+        }
+    }
+}
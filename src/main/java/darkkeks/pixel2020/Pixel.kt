@@ -1,8 +1,7 @@
 package darkkeks.pixel2020
 
-import darkkeks.pixel2020.Colors.COLOR_TO_ID
 import darkkeks.pixel2020.Colors.PALETTE
-import java.awt.Color
+import java.nio.ByteBuffer
 
 object FlagType {
     const val place = 0
@@ -11,32 +10,89 @@ object FlagType {
     const val pixel = 3
 }
 
-class Pixel(
-    val x: Int,
-    val y: Int,
-    val color: Color,
-    val flag: Int,
-    val userId: Int = 0,
-    val groupId: Int = 0
-) {
-    constructor(x: Int, y: Int, color: Color) : this(x, y, color, FlagType.pixel)
+class Pixel(val x: Int, val y: Int, val colorId: Int)
+
+/**
+ * Packs a placement as `cell + PIXEL_COUNT * (colorId + flag * PALETTE.size)`, board feed updates use the same layout.
+ */
+fun Pixel.pack(): Int {
+    if (colorId !in PALETTE.indices) error("Invalid pixel color")
+    return x + y * FIELD_WIDTH + PIXEL_COUNT * (colorId + FlagType.pixel * PALETTE.size)
 }
 
-fun unpack(a: Int, b: Int, c: Int): Pixel {
-    var value = a
+/**
+ * Struct-of-arrays view of pixel updates from a single binary frame.
+ *
+ * Instance is reused between frames, so consumers must not keep references to it or its arrays
+ * after the handler returns.
+ */
+class PixelBatch(capacity: Int = 256) {
+    var size = 0
+        private set
+    var cell = IntArray(capacity)
+        private set
+    var color = ByteArray(capacity)
+        private set
+    var flag = ByteArray(capacity)
+        private set
+    var userId = IntArray(capacity)
+        private set
+    var groupId = IntArray(capacity)
+        private set
 
-    val x = a % FIELD_WIDTH
-    value /= FIELD_WIDTH
-    val y = value % FIELD_HEIGHT
-    value /= FIELD_HEIGHT
-    val color = value % PALETTE.size
-    value /= PALETTE.size
-    val flag = value
+    /**
+     * Decodes a frame of 12-byte little-endian updates, see [pack] for the layout of the first int.
+     */
+    fun decode(buffer: ByteBuffer) {
+        val count = buffer.remaining() / 12
+        ensureCapacity(count)
 
-    return Pixel(x, y, Colors.RGB_MAP[color], flag, b, c)
-}
+        val paletteSize = PALETTE.size
+        var position = buffer.position()
+        for (i in 0 until count) {
+            val value = buffer.getInt(position)
+            val rest = value / PIXEL_COUNT
+            cell[i] = value - rest * PIXEL_COUNT
+            color[i] = (rest % paletteSize).toByte()
+            flag[i] = (rest / paletteSize).toByte()
+            userId[i] = buffer.getInt(position + 4)
+            groupId[i] = buffer.getInt(position + 8)
+            position += 12
+        }
+        size = count
+    }
 
-fun Pixel.pack(): Int {
-    val colorId = COLOR_TO_ID[color] ?: error("Invalid pixel color")
-    return x + y * FIELD_WIDTH + PIXEL_COUNT * (colorId + flag * PALETTE.size)
+    /**
+     * Appends a single update, used to assemble batches that don't come from a frame.
+     */
+    fun add(cell: Int, color: Byte, flag: Byte, userId: Int, groupId: Int) {
+        if (size == this.cell.size) {
+            val newCapacity = maxOf(size * 2, 16)
+            this.cell = this.cell.copyOf(newCapacity)
+            this.color = this.color.copyOf(newCapacity)
+            this.flag = this.flag.copyOf(newCapacity)
+            this.userId = this.userId.copyOf(newCapacity)
+            this.groupId = this.groupId.copyOf(newCapacity)
+        }
+        this.cell[size] = cell
+        this.color[size] = color
+        this.flag[size] = flag
+        this.userId[size] = userId
+        this.groupId[size] = groupId
+        size++
+    }
+
+    fun clear() {
+        size = 0
+    }
+
+    private fun ensureCapacity(capacity: Int) {
+        if (capacity <= cell.size) return
+        val newCapacity = maxOf(capacity, cell.size * 2)
+        cell = IntArray(newCapacity)
+        color = ByteArray(newCapacity)
+        flag = ByteArray(newCapacity)
+        userId = IntArray(newCapacity)
+        groupId = IntArray(newCapacity)
+    }
 }
@@ -2,14 +2,13 @@ package darkkeks.pixel2020
 
 import com.google.gson.JsonObject
 import com.google.gson.JsonParser
-import java.awt.Color
-import java.awt.image.BufferedImage
 import java.net.URI
 import java.net.URISyntaxException
 import java.net.http.HttpClient
 import java.net.http.HttpRequest
 import java.net.http.HttpResponse
 import java.net.http.HttpResponse.BodyHandler
+import java.time.Duration
 import java.time.LocalDateTime
 import java.util.concurrent.CompletableFuture
 
@@ -28,33 +27,12 @@ object Colors {
         "#FF5B36", "#DA5100", "#94E044", "#5CBF0D", "#C3D117", "#FCC700", "#D38301"
     )
 
-    val RGB_MAP: List<Color>
-    val COLOR_TO_ID: Map<Color, Int>
-    val RGB_TO_COLOR: Map<Int, Color>
-
-    init {
-        RGB_MAP = PALETTE.map { color -> hex2rgb(color) }
-        COLOR_TO_ID = RGB_MAP
-            .mapIndexed { index, color -> color to index }
-            .toMap()
-        RGB_TO_COLOR = RGB_MAP
-            .map { color -> color.rgb to color }
-            .toMap()
-    }
-
-    private fun hex2rgb(colorStr: String) = Color(
-        Integer.valueOf(colorStr.substring(1, 3), 16),
-        Integer.valueOf(colorStr.substring(3, 5), 16),
-        Integer.valueOf(colorStr.substring(5, 7), 16)
-    )
+    /**
+     * Palette colors as opaque ARGB ints, indexed by palette index.
+     */
+    val RGB = IntArray(PALETTE.size) { id -> hex2rgb(PALETTE[id]) }
 
-    fun charToColor(c: Char): Color {
-        return if (c in '0'..'9') {
-            RGB_MAP[c - '0']
-        } else {
-            RGB_MAP[c - 'a' + 10]
-        }
-    }
+    private fun hex2rgb(colorStr: String) = (0xFF shl 24) or Integer.parseInt(colorStr.substring(1), 16)
 }
 
 data class Credentials(val signature: String)
@@ -69,10 +47,20 @@ class PixelApi(private val loginSignature: String, private val client: HttpClien
     ): CompletableFuture<HttpResponse<T>> {
         return try {
             val request = HttpRequest.newBuilder()
-                .uri(URI(API_URL + endpoint))
+                .uri(URI(apiUrl + endpoint))
                 .header("X-vk-sign", loginSignature)
+                .timeout(REQUEST_TIMEOUT)
                 .build()
-            client.sendAsync(request, handler)
+            val event = PixelEvents.ApiRequest()
+            event.begin()
+            client.sendAsync(request, handler).whenComplete { _, e ->
+                event.end()
+                if (event.shouldCommit()) {
+                    event.endpoint = endpoint.substringBefore('?')
+                    event.success = e == null
+                    event.commit()
+                }
+            }
         } catch (e: URISyntaxException) {
             throw RuntimeException("Can't make api request", e)
         }
@@ -95,27 +83,29 @@ class PixelApi(private val loginSignature: String, private val client: HttpClien
         }
     }
 
-    fun data(): CompletableFuture<BufferedImage> {
+    /**
+     * Fetches current board, decoding it while the response is being received.
+     */
+    fun data(): CompletableFuture<BoardSnapshot> {
         val hour = LocalDateTime.now().hour
         val minute = LocalDateTime.now().minute
         return makeRequest(
             "/data" + String.format("?ts=%d-%d", hour, minute),
-            HttpResponse.BodyHandlers.ofString()
-        ).thenApply { response: HttpResponse<String> ->
-            val imageData = response.body().substring(0, PIXEL_COUNT)
-            val frozen: String = response.body().substring(PIXEL_COUNT)
-            val result = BufferedImage(FIELD_WIDTH, FIELD_HEIGHT, BufferedImage.TYPE_INT_RGB)
-            for (i in 0 until PIXEL_COUNT) {
-                val x: Int = i % FIELD_WIDTH
-                val y: Int = i / FIELD_WIDTH
-                result.setRGB(x, y, Colors.charToColor(imageData[i]).rgb)
-            }
-            result
-        }
+            BoardSnapshotSubscriber.HANDLER
+        ).thenApply { response -> response.body() }
     }
 
     companion object {
-        const val API_URL = "https://pixel-dev.w84.vkforms.ru/api"
+        const val DEFAULT_API_URL = "https://pixel-dev.w84.vkforms.ru/api"
+
+        /**
+         * Base url of the api, taken from the `api` environment variable if set,
+         * for example to point the bot at a local simulator.
+         */
+        @Volatile
+        @JvmStatic
+        var apiUrl: String = System.getenv("api") ?: DEFAULT_API_URL
+        private val REQUEST_TIMEOUT = Duration.ofSeconds(30)
     }
 }
 
@@ -0,0 +1,140 @@
+package darkkeks.pixel2020;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.ValueDescriptor;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+
+/**
+ * Flight Recorder events for the placement and board update paths.
+ * <p>
+ * Events are enabled by default and cost next to nothing unless a recording is running, so they can be
+ * captured from production with {@code -XX:StartFlightRecording} or streamed into the log with {@link #startLogging}.
+ */
+public final class PixelEvents {
+
+    private static final Logger logger = LoggerFactory.getLogger(PixelEvents.class);
+
+    /**
+     * Events with a duration, logged when longer than the threshold.
+     */
+    private static final String[] TIMED = {
+            SendPixel.NAME, DecodeFrame.NAME, RebuildQueue.NAME, PopQueue.NAME, ApiRequest.NAME
+    };
+    private static final Duration LOCK_THRESHOLD = Duration.ofMillis(10);
+
+    private PixelEvents() {
+    }
+
+    /**
+     * Streams events longer than the threshold into the log, together with reconnects, GC pauses and contended locks.
+     */
+    public static RecordingStream startLogging(Duration threshold) {
+        RecordingStream stream = new RecordingStream();
+        for (String name : TIMED) {
+            stream.enable(name).withThreshold(threshold);
+        }
+        stream.enable(Reconnect.NAME);
+        stream.enable("jdk.GarbageCollection");
+        stream.enable("jdk.JavaMonitorEnter").withThreshold(LOCK_THRESHOLD);
+        stream.onEvent(event -> logger.info(format(event)));
+        stream.startAsync();
+        return stream;
+    }
+
+    private static String format(RecordedEvent event) {
+        StringBuilder builder = new StringBuilder(event.getEventType().getName())
+                .append(' ')
+                .append(event.getDuration().toNanos() / 1e6)
+                .append("ms");
+        for (ValueDescriptor field : event.getFields()) {
+            String name = field.getName();
+            if (name.equals("startTime") || name.equals("duration") || name.equals("stackTrace")) continue;
+            builder.append(", ").append(name).append('=').append(String.valueOf((Object) event.getValue(name)));
+        }
+        return builder.toString();
+    }
+
+    @Name(SendPixel.NAME)
+    @Label("Send Pixel")
+    @Category("Pixel")
+    @Description("Pixel sent by an account, until the websocket send completes")
+    public static class SendPixel extends Event {
+        static final String NAME = "darkkeks.SendPixel";
+
+        @Label("Account")
+        public String account;
+
+        @Label("Cell")
+        public int cell;
+
+        @Label("Color")
+        public int color;
+    }
+
+    @Name(DecodeFrame.NAME)
+    @Label("Decode Frame")
+    @Category("Pixel")
+    @Description("Board feed frame decoded and handled")
+    public static class DecodeFrame extends Event {
+        static final String NAME = "darkkeks.DecodeFrame";
+
+        @Label("Updates")
+        public int size;
+    }
+
+    @Name(RebuildQueue.NAME)
+    @Label("Rebuild Queue")
+    @Category("Pixel")
+    public static class RebuildQueue extends Event {
+        static final String NAME = "darkkeks.RebuildQueue";
+
+        @Label("Queue Size")
+        public int size;
+    }
+
+    @Name(PopQueue.NAME)
+    @Label("Pop Queue")
+    @Category("Pixel")
+    @Description("Cell taken from the queue, including waiting for the queue lock")
+    public static class PopQueue extends Event {
+        static final String NAME = "darkkeks.PopQueue";
+
+        @Label("Cell")
+        public int cell;
+    }
+
+    @Name(ApiRequest.NAME)
+    @Label("Api Request")
+    @Category("Pixel")
+    public static class ApiRequest extends Event {
+        static final String NAME = "darkkeks.ApiRequest";
+
+        @Label("Endpoint")
+        public String endpoint;
+
+        @Label("Success")
+        public boolean success;
+    }
+
+    @Name(Reconnect.NAME)
+    @Label("Reconnect")
+    @Category("Pixel")
+    public static class Reconnect extends Event {
+        static final String NAME = "darkkeks.Reconnect";
+
+        @Label("Account")
+        public String account;
+
+        @Label("Observer")
+        public boolean observer;
+    }
+}
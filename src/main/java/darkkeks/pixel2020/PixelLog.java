@@ -0,0 +1,258 @@
+package darkkeks.pixel2020;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Append-only log of the observed pixel stream, written to memory-mapped segment files.
+ * <p>
+ * Every update is a fixed 24-byte little-endian record: cell (int), color (byte), flag (byte), two bytes
+ * of padding, user id (int), group id (int) and receive time in milliseconds (long). Segments are
+ * preallocated, a record with zero time marks the end of written data. When a segment is full
+ * the log rolls over to the next one, named after the time it was created and a sequence number.
+ * Oldest segments are deleted once the log grows over its size limit, segments left by previous runs included.
+ * <p>
+ * Appends run on the board feed thread, so the next segment is created ahead of time and full segments
+ * are forced to disk and cleaned up on a background thread.
+ */
+public class PixelLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(PixelLog.class);
+
+    public static final int RECORD_SIZE = 24;
+    static final long SEGMENT_SIZE = (64L << 20) / RECORD_SIZE * RECORD_SIZE;
+    private static final String PREFIX = "pixels-";
+    private static final String SUFFIX = ".log";
+
+    private final Path directory;
+    private final int maxSegments;
+    private final ExecutorService background;
+
+    /**
+     * Only used on the background thread.
+     */
+    private int sequence;
+
+    private Segment segment;
+    private Future<Segment> next;
+
+    private static class Segment {
+        final Path path;
+        final MappedByteBuffer buffer;
+
+        Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    private PixelLog(Path directory, int maxSegments) {
+        this.directory = directory;
+        this.maxSegments = maxSegments;
+        this.background = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "pixel-log");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param maxBytes total size of segments to keep, at least one segment is always kept
+     */
+    public static PixelLog open(Path directory, long maxBytes) throws IOException {
+        Files.createDirectories(directory);
+        PixelLog log = new PixelLog(directory, (int) Math.max(maxBytes / SEGMENT_SIZE, 1));
+        synchronized (log) {
+            log.next = log.background.submit(log::createSegment);
+            log.roll();
+        }
+        return log;
+    }
+
+    public synchronized void append(PixelBatch batch, long timeMillis) throws IOException {
+        int[] cells = batch.getCell();
+        byte[] colors = batch.getColor();
+        byte[] flags = batch.getFlag();
+        int[] userIds = batch.getUserId();
+        int[] groupIds = batch.getGroupId();
+
+        MappedByteBuffer buffer = segment.buffer;
+        for (int i = 0; i < batch.getSize(); ++i) {
+            if (buffer.remaining() < RECORD_SIZE) {
+                roll();
+                buffer = segment.buffer;
+            }
+            buffer.putInt(cells[i])
+                    .put(colors[i])
+                    .put(flags[i])
+                    .putShort((short) 0)
+                    .putInt(userIds[i])
+                    .putInt(groupIds[i])
+                    .putLong(timeMillis);
+        }
+    }
+
+    public synchronized void flush() {
+        segment.buffer.force();
+    }
+
+    /**
+     * Flushes the current segment, waits for background work and deletes the unused preallocated segment.
+     * The log can't be appended to afterwards.
+     */
+    public synchronized void close() throws IOException {
+        segment.buffer.force();
+        Path unused = await(next).path;
+        background.shutdown();
+        try {
+            background.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Files.deleteIfExists(unused);
+    }
+
+    private void roll() throws IOException {
+        Segment previous = segment;
+        segment = await(next);
+        next = background.submit(this::createSegment);
+        Path current = segment.path;
+        background.execute(() -> retire(previous, current));
+    }
+
+    private Segment createSegment() throws IOException {
+        String time = String.format("%013d", System.currentTimeMillis());
+        while (true) {
+            Path path = directory.resolve(String.format("%s%s-%06d%s", PREFIX, time, sequence++, SUFFIX));
+            try (FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                return new Segment(path, buffer);
+            } catch (FileAlreadyExistsException e) {
+                // Another log in the same directory created a segment in the same millisecond
+            }
+        }
+    }
+
+    /**
+     * Forces the full segment to disk and deletes segments older than the last {@code maxSegments}
+     * up to the current one.
+     */
+    private void retire(Segment previous, Path current) {
+        try {
+            if (previous != null) {
+                previous.buffer.force();
+            }
+            List<Path> segments = listSegments(directory);
+            int keepFrom = segments.indexOf(current) - maxSegments + 1;
+            for (int i = 0; i < keepFrom; ++i) {
+                Files.delete(segments.get(i));
+            }
+        } catch (IOException e) {
+            logger.warn("Can't clean up pixel log segments", e);
+        }
+    }
+
+    private static Segment await(Future<Segment> segment) throws IOException {
+        try {
+            return segment.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Can't create pixel log segment", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for pixel log segment");
+        }
+    }
+
+    private static List<Path> listSegments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files
+                    .filter(path -> path.getFileName().toString().startsWith(PREFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Feeds logged updates to the consumer in batches of updates received at the same time.
+     * <p>
+     * Batches are delivered at the pace they were received divided by {@code speedup},
+     * or as fast as possible if speedup is not positive. The batch is reused between calls.
+     *
+     * @return number of replayed updates
+     */
+    public static long replay(Path directory, double speedup, Consumer<PixelBatch> consumer)
+            throws IOException, InterruptedException {
+        List<Path> segments = listSegments(directory);
+
+        PixelBatch batch = new PixelBatch();
+        long batchTime = 0;
+        long firstTime = 0;
+        long startNanos = System.nanoTime();
+        long count = 0;
+
+        for (Path path : segments) {
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            for (int position = 0; position + RECORD_SIZE <= buffer.limit(); position += RECORD_SIZE) {
+                long time = buffer.getLong(position + 16);
+                if (time == 0) break;
+
+                if (time != batchTime && batch.getSize() > 0) {
+                    deliver(batch, batchTime - firstTime, startNanos, speedup, consumer);
+                }
+                if (count == 0) {
+                    firstTime = time;
+                }
+                batchTime = time;
+                batch.add(buffer.getInt(position), buffer.get(position + 4), buffer.get(position + 5),
+                        buffer.getInt(position + 8), buffer.getInt(position + 12));
+                count++;
+            }
+        }
+        if (batch.getSize() > 0) {
+            deliver(batch, batchTime - firstTime, startNanos, speedup, consumer);
+        }
+        return count;
+    }
+
+    private static void deliver(PixelBatch batch, long offsetMillis, long startNanos, double speedup,
+                                Consumer<PixelBatch> consumer) throws InterruptedException {
+        if (speedup > 0) {
+            long due = startNanos + (long) (offsetMillis * 1_000_000 / speedup);
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            }
+        }
+        consumer.accept(batch);
+        batch.clear();
+    }
+}
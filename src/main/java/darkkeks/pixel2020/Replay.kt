@@ -0,0 +1,35 @@
+package darkkeks.pixel2020
+
+import darkkeks.pixel2019.PixelQueue
+import java.nio.file.Path
+
+/**
+ * Replays the pixel log into a board, queue and health check, starting from an empty board,
+ * and reports how fast they keep up. Set `speedup` to replay at that multiple of the recorded pace,
+ * by default updates are replayed as fast as possible.
+ */
+fun main() {
+    val directory = Path.of(System.getenv("log") ?: "pixels")
+    val speedup = System.getenv("speedup")?.toDouble() ?: 0.0
+
+    val templates = loadTemplates(Path.of("templates.txt"), Path.of("template.png"), false)
+    val board = Board()
+    val queue = PixelQueue(templates)
+    val healthCheck = HealthCheck()
+    queue.rebuild(board)
+
+    var batches = 0
+    val start = System.nanoTime()
+    val count = PixelLog.replay(directory, speedup) { batch ->
+        board.set(batch)
+        healthCheck.onPixels(batch)
+        queue.onPixels(batch)
+        batches++
+    }
+    val seconds = (System.nanoTime() - start) / 1e9
+
+    println(String.format(
+        "Replayed %d updates in %d batches in %.2fs (%.0f updates/s), queue size: %d",
+        count, batches, seconds, count / seconds, queue.size()
+    ))
+}
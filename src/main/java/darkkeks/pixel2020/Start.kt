@@ -1,28 +1,94 @@
 package darkkeks.pixel2020
 
 import darkkeks.pixel2019.Controller
+import darkkeks.pixel2019.PixelOrder
+import org.slf4j.LoggerFactory
 import java.awt.image.BufferedImage
+import java.io.IOException
 import java.nio.file.Files
 import java.nio.file.Path
+import java.time.Duration
+import java.util.function.Function
 import java.util.stream.Collectors.toList
 import javax.imageio.ImageIO
 
+private val logger = LoggerFactory.getLogger("darkkeks.pixel2020.Start")
+
 fun loadImage(path: Path): BufferedImage {
-    return ImageIO.read(path.toFile())
+    return ImageIO.read(path.toFile()) ?: throw IOException("Can't decode image $path")
+}
+
+/**
+ * Loads layers from `templates.txt` if it exists, one `<file> [dx dy [share]]` per line,
+ * later lines are drawn on top. Otherwise `template.png` is the only layer.
+ */
+fun loadTemplates(templatesPath: Path, templatePath: Path, perceptual: Boolean): TemplateSet {
+    if (!Files.exists(templatesPath)) {
+        return TemplateSet.of(Template(loadImage(templatePath), perceptual))
+    }
+
+    val layers = Files.readAllLines(templatesPath)
+        .map { it.trim() }
+        .filter { it.isNotEmpty() && !it.startsWith("#") }
+        .mapIndexed { z, line ->
+            val parts = line.split(Regex("\\s+"))
+            val template = Template(loadImage(Path.of(parts[0])), perceptual)
+            val dx = parts.getOrNull(1)?.toInt() ?: 0
+            val dy = parts.getOrNull(2)?.toInt() ?: 0
+            val share = parts.getOrNull(3)?.toDouble() ?: 1.0
+            TemplateSet.Layer(parts[0], template, dx, dy, share, z)
+        }
+    return TemplateSet(layers)
 }
 
 fun main() {
+    val headless = System.getenv("nogui") != null
+    if (headless) {
+        System.setProperty("java.awt.headless", "true")
+    }
+
     val templatePath = Path.of("template.png")
+    val templatesPath = Path.of("templates.txt")
     val urlsPath = Path.of("urls.txt")
+    val importancePath = Path.of("importance.png")
 
-    val image = loadImage(templatePath)
     val urls = Files.lines(urlsPath)
         .filter{ it.startsWith("?") }
         .map { Credentials(it) }
         .collect(toList())
 
+    val importance = if (Files.exists(importancePath)) loadImage(importancePath) else null
+    val order = PixelOrder.parse(System.getenv("order"), importance)
+    val griefedFirst = System.getenv("griefed") != null
+    val perceptual = System.getenv("perceptual") != null
+    // Port of the metrics endpoint, "off" to disable it
+    val metrics = System.getenv("metrics")
+    val metricsPort = if (metrics == "off") null else metrics?.toInt() ?: 9404
+    // Size limit of the pixel stream log in megabytes, the stream isn't logged unless set
+    val pixelLogSize = System.getenv("pixellog")?.toLong()
+
+    if (metricsPort != null) {
+        try {
+            MetricsServer.start(metricsPort)
+        } catch (e: IOException) {
+            logger.warn("Can't start metrics endpoint on port {}, running without it", metricsPort, e)
+        }
+    }
+    System.getenv("jfr")?.let { PixelEvents.startLogging(Duration.ofMillis(it.toLong())) }
+
+    var templates = loadTemplates(templatesPath, templatePath, perceptual)
+
     val iterator = urls.listIterator()
-    val controller = Controller(iterator.next(), Template(image))
+    // Separate lambdas, so that nothing referencing Swing gets loaded when headless
+    val viewFactory = if (headless) {
+        Function<Board, BoardView> { BoardView.HEADLESS }
+    } else {
+        Function<Board, BoardView> { board -> BoardGraphics(board) }
+    }
+    val pixelLog = pixelLogSize?.let { PixelLog.open(Path.of("pixels"), it shl 20) }
+    pixelLog?.let { Runtime.getRuntime().addShutdownHook(Thread { it.close() }) }
+
+    val controller = Controller(iterator.next(), templates, order, griefedFirst, viewFactory, pixelLog)
 
     iterator.remove()
     iterator.forEachRemaining {
@@ -32,9 +98,18 @@ fun main() {
     // Watch dir for changes
     DirectoryWatcher(Path.of(".")).run { event ->
         if (event.kind().name() != "ENTRY_DELETE") {
-            if (event.context().toString() == "template.png") {
+            val name = event.context().toString()
+            if (name == templatesPath.toString() || name == templatePath.toString() || templates.layers.any { it.name == name }) {
                 println("New template is loading")
-                controller.updateTemplate(Template(loadImage(templatePath)))
+                // The file may still be partly written, the next modify event retries
+                val loaded = try {
+                    loadTemplates(templatesPath, templatePath, perceptual)
+                } catch (e: Exception) {
+                    logger.warn("Can't load templates, keeping the current ones", e)
+                    return@run
+                }
+                templates = loaded
+                controller.updateTemplate(templates)
             }
         }
     }
@@ -1,24 +1,73 @@
 package darkkeks.pixel2020;
 
-import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 
+/**
+ * Template image quantized to the palette and cropped to its non-transparent bounds.
+ * <p>
+ * Besides the image (used for display) the template is kept in a compact immutable form:
+ * a palette index per cell of the cropped rectangle ({@link #NONE} for transparent cells),
+ * and a list of non-transparent spans per row, so that iterating it doesn't allocate.
+ */
 public class Template {
 
-    public static final Color TRANSPARENT = new Color(0, 0, 0, 0);
+    /**
+     * ARGB of transparent cells in the template image.
+     */
+    public static final int TRANSPARENT = 0;
+    public static final int NONE = -1;
 
-    private Point minimalPixelCoords;
-    private Point maximalPixelCoords;
+    private final int offsetX;
+    private final int offsetY;
 
-    private BufferedImage image;
+    private final BufferedImage image;
+
+    private final byte[] colors;
+    private final int[] rowSpans;
+    private final int[] spans;
 
     public Template(BufferedImage image) {
-        this.image = image;
-        normalizeColors();
-        cropImage();
+        this(image, false);
+    }
+
+    /**
+     * @param perceptual quantize colors by distance in Lab space instead of RGB
+     */
+    public Template(BufferedImage image, boolean perceptual) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+        byte[] ids = new byte[width * height];
+        normalizeColors(argb, ids, width, height, ColorQuantizer.get(perceptual));
+
+        int minX = width;
+        int minY = height;
+        int maxX = 0;
+        int maxY = 0;
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                if (ids[x + y * width] != NONE) {
+                    minX = Math.min(minX, x);
+                    minY = Math.min(minY, y);
+                    maxX = Math.max(maxX, x);
+                    maxY = Math.max(maxY, y);
+                }
+            }
+        }
+        int croppedWidth = maxX - minX + 1;
+        int croppedHeight = maxY - minY + 1;
+
+        this.offsetX = minX;
+        this.offsetY = minY;
+        this.image = new BufferedImage(croppedWidth, croppedHeight, BufferedImage.TYPE_INT_ARGB);
+        this.image.setRGB(0, 0, croppedWidth, croppedHeight, argb, minX + minY * width, width);
+
+        this.colors = new byte[croppedWidth * croppedHeight];
+        this.rowSpans = new int[croppedHeight + 1];
+        this.spans = buildSpans(ids, width);
     }
 
     public int getWidth() {
@@ -29,119 +78,92 @@ public class Template {
         return image.getHeight();
     }
 
-    public Point getOffset() {
-        return minimalPixelCoords;
+    /**
+     * @return x of the cropped template within its source image
+     */
+    public int getOffsetX() {
+        return offsetX;
+    }
+
+    /**
+     * @return y of the cropped template within its source image
+     */
+    public int getOffsetY() {
+        return offsetY;
     }
 
     public BufferedImage getImage() {
         return image;
     }
 
-    public Color getColor(int x, int y) {
-        if (x < 0 || y < 0 || x > getWidth() - 1 || y > getHeight() - 1) return null;
-
-        int rgb = image.getRGB(x, y);
-        return Colors.INSTANCE.getRGB_TO_COLOR().get(rgb);
+    /**
+     * @return palette index at template coordinates, or {@link #NONE}
+     */
+    public int getColorId(int x, int y) {
+        if (x < 0 || y < 0 || x > getWidth() - 1 || y > getHeight() - 1) return NONE;
+        return colors[x + y * getWidth()];
     }
 
-    public Color getColorAbs(int x, int y) {
-        return getColor(x - minimalPixelCoords.x, y - minimalPixelCoords.y);
+    /**
+     * @return number of non-transparent spans in a template row
+     */
+    public int getSpanCount(int row) {
+        return (rowSpans[row + 1] - rowSpans[row]) / 2;
     }
 
-    private int colorDist(Color a, Color b) {
-        return (a.getRed() - b.getRed()) * (a.getRed() - b.getRed()) +
-                (a.getGreen() - b.getGreen()) * (a.getGreen() - b.getGreen()) +
-                (a.getBlue() - b.getBlue()) * (a.getBlue() - b.getBlue());
+    /**
+     * @return first template x coordinate of the span, inclusive
+     */
+    public int getSpanStart(int row, int span) {
+        return spans[rowSpans[row] + 2 * span];
     }
 
-    private void normalizeColors() {
-        for (int x = 0; x < image.getWidth(); ++x) {
-            for (int y = 0; y < image.getHeight(); ++y) {
-                int rgb = image.getRGB(x, y);
-                Color color = new Color(rgb, image.getAlphaRaster() != null);
-                if(color.getAlpha() < 40) {
-                    image.setRGB(x, y, TRANSPARENT.getRGB());
-                } else {
-                    Color best = null;
-                    double bestDist = Integer.MAX_VALUE;
-                    for (Color palette : Colors.INSTANCE.getRGB_MAP()) {
-                        int dist = colorDist(palette, color);
-                        if (dist < bestDist) {
-                            best = palette;
-                            bestDist = dist;
-                        }
-                    }
-                    assert best != null;
-                    image.setRGB(x, y, best.getRGB());
-                }
-            }
-        }
+    /**
+     * @return last template x coordinate of the span, exclusive
+     */
+    public int getSpanEnd(int row, int span) {
+        return spans[rowSpans[row] + 2 * span + 1];
     }
 
-    private void cropImage() {
-        Point min = new Point(getWidth(),getHeight());
-        Point max = new Point(0, 0);
-
-        BufferedImage croppedImage;
+    private void normalizeColors(int[] argb, byte[] ids, int width, int height, ColorQuantizer quantizer) {
+        int[] paletteRgb = Colors.INSTANCE.getRGB();
 
-        for (int x = 0; x < image.getWidth(); ++x) {
-            for (int y = 0 ; y < image.getHeight() ; ++y) {
-                int rgb = image.getRGB(x, y);
-                Color color = new Color(rgb, image.getAlphaRaster() != null);
-                if (!color.equals(TRANSPARENT)) {
-                    // Adjust min and max pixels
-                    min.setLocation(Math.min(min.x, x), Math.min(min.y, y));
-                    max.setLocation(Math.max(max.x, x), Math.max(max.y, y));
-                }
+        IntStream.range(0, height).parallel().forEach(y -> {
+            for (int i = y * width; i < (y + 1) * width; ++i) {
+                int id = quantizer.quantize(argb[i]);
+                ids[i] = (byte) id;
+                argb[i] = id == ColorQuantizer.TRANSPARENT ? TRANSPARENT : paletteRgb[id];
             }
-        }
-
-        int w = max.x - min.x + 1;
-        int h = max.y - min.y + 1;
-
-        croppedImage = image.getSubimage(min.x, min.y, w, h);
-
-        image = croppedImage;
-        minimalPixelCoords = min;
-        maximalPixelCoords = max;
+        });
     }
 
-    public Set<TemplatePixel> getPixels() {
-        Set<TemplatePixel> pixels = new HashSet<>();
+    private int[] buildSpans(byte[] ids, int sourceWidth) {
+        int width = getWidth();
+        int height = getHeight();
 
-        for (int x = 0; x < getWidth(); x++) {
-            for (int y = 0; y < getHeight(); y++) {
-                int absX = minimalPixelCoords.x + x;
-                int absY = minimalPixelCoords.y + y;
-                TemplatePixel pixel = new TemplatePixel(x, y, absX, absY, getColor(x, y));
+        int[] result = new int[16];
+        int size = 0;
 
-                pixels.add(pixel);
-            }
-        }
+        for (int y = 0; y < height; ++y) {
+            rowSpans[y] = size;
+            int source = offsetX + (offsetY + y) * sourceWidth;
+            System.arraycopy(ids, source, colors, y * width, width);
 
-        return pixels;
-    }
+            int x = 0;
+            while (x < width) {
+                while (x < width && colors[x + y * width] == NONE) x++;
+                if (x == width) break;
+                int start = x;
+                while (x < width && colors[x + y * width] != NONE) x++;
 
-    public void setLocation(int x, int y) {
-        minimalPixelCoords.setLocation(x, y);
-        maximalPixelCoords.setLocation(x + getWidth(), y + getHeight());
-    }
-
-    public static class TemplatePixel {
-
-        public final int x;
-        public final int y;
-        public final int absX;
-        public final int absY;
-        public final Color color;
-
-        public TemplatePixel(int x, int y, int absX, int absY, Color color) {
-            this.x = x;
-            this.y = y;
-            this.absX = absX;
-            this.absY = absY;
-            this.color = color;
+                if (size + 2 > result.length) {
+                    result = Arrays.copyOf(result, result.length * 2);
+                }
+                result[size++] = start;
+                result[size++] = x;
+            }
         }
-
+        rowSpans[height] = size;
+        return Arrays.copyOf(result, size);
     }
 }
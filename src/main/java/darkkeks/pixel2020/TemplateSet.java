@@ -0,0 +1,166 @@
+package darkkeks.pixel2020;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static darkkeks.pixel2020.PixelApiKt.*;
+
+/**
+ * Several templates composited into a single target.
+ * <p>
+ * Layers are painted in z-order, so where layers overlap the one with the highest z wins.
+ * The result is a palette index per board cell ({@link Template#NONE} where no layer has a pixel),
+ * the index of the layer owning every cell, and non-transparent spans per board row.
+ * Every layer also gets a share of placement capacity, used by the queue to split accounts between layers.
+ */
+public class TemplateSet {
+
+    private final List<Layer> layers;
+    private final byte[] target;
+    private final byte[] owner;
+    private final int[] rowSpans;
+    private final int[] spans;
+
+    public TemplateSet(List<Layer> layers) {
+        if (layers.isEmpty()) throw new IllegalArgumentException("No template layers");
+        if (layers.size() > Byte.MAX_VALUE) throw new IllegalArgumentException("Too many template layers");
+
+        List<Layer> sorted = new ArrayList<>(layers);
+        sorted.sort(Comparator.comparingInt(layer -> layer.z));
+        this.layers = Collections.unmodifiableList(sorted);
+
+        this.target = new byte[PIXEL_COUNT];
+        this.owner = new byte[PIXEL_COUNT];
+        Arrays.fill(target, (byte) Template.NONE);
+        Arrays.fill(owner, (byte) Template.NONE);
+
+        for (int i = 0; i < this.layers.size(); ++i) {
+            paint(i, this.layers.get(i));
+        }
+
+        this.rowSpans = new int[FIELD_HEIGHT + 1];
+        this.spans = buildSpans();
+    }
+
+    public static TemplateSet of(Template template) {
+        return new TemplateSet(Collections.singletonList(new Layer("template", template, 0, 0, 1, 0)));
+    }
+
+    public List<Layer> getLayers() {
+        return layers;
+    }
+
+    public int getLayerCount() {
+        return layers.size();
+    }
+
+    /**
+     * @return target palette index at board coordinates, or {@link Template#NONE}
+     */
+    public int getColorId(int x, int y) {
+        if (!checkRange(x, y)) return Template.NONE;
+        return target[x + y * FIELD_WIDTH];
+    }
+
+    public int getColorId(int cell) {
+        return target[cell];
+    }
+
+    /**
+     * @return index of the layer owning the cell, or {@link Template#NONE}
+     */
+    public int getOwner(int cell) {
+        return owner[cell];
+    }
+
+    public int getSpanCount(int y) {
+        return (rowSpans[y + 1] - rowSpans[y]) / 2;
+    }
+
+    public int getSpanStart(int y, int span) {
+        return spans[rowSpans[y] + 2 * span];
+    }
+
+    public int getSpanEnd(int y, int span) {
+        return spans[rowSpans[y] + 2 * span + 1];
+    }
+
+    private void paint(int index, Layer layer) {
+        Template template = layer.template;
+        for (int row = 0; row < template.getHeight(); ++row) {
+            int y = layer.getOffsetY() + row;
+            if (y < 0 || y >= FIELD_HEIGHT) continue;
+
+            for (int span = 0; span < template.getSpanCount(row); ++span) {
+                int from = Math.max(template.getSpanStart(row, span), -layer.getOffsetX());
+                int to = Math.min(template.getSpanEnd(row, span), FIELD_WIDTH - layer.getOffsetX());
+                for (int x = from; x < to; ++x) {
+                    int cell = layer.getOffsetX() + x + y * FIELD_WIDTH;
+                    target[cell] = (byte) template.getColorId(x, row);
+                    owner[cell] = (byte) index;
+                }
+            }
+        }
+    }
+
+    private int[] buildSpans() {
+        int[] result = new int[16];
+        int size = 0;
+
+        for (int y = 0; y < FIELD_HEIGHT; ++y) {
+            rowSpans[y] = size;
+            int x = 0;
+            while (x < FIELD_WIDTH) {
+                while (x < FIELD_WIDTH && target[x + y * FIELD_WIDTH] == Template.NONE) x++;
+                if (x == FIELD_WIDTH) break;
+                int start = x;
+                while (x < FIELD_WIDTH && target[x + y * FIELD_WIDTH] != Template.NONE) x++;
+
+                if (size + 2 > result.length) {
+                    result = Arrays.copyOf(result, result.length * 2);
+                }
+                result[size++] = start;
+                result[size++] = x;
+            }
+        }
+        rowSpans[FIELD_HEIGHT] = size;
+        return Arrays.copyOf(result, size);
+    }
+
+    public static class Layer {
+
+        public final String name;
+        public final Template template;
+        public final int dx;
+        public final int dy;
+        public final double share;
+        public final int z;
+
+        /**
+         * @param dx    horizontal shift of the template relative to where it is drawn in its image
+         * @param dy    vertical shift of the template relative to where it is drawn in its image
+         * @param share relative share of placement capacity
+         * @param z     layers with higher z are drawn on top
+         */
+        public Layer(String name, Template template, int dx, int dy, double share, int z) {
+            if (share <= 0) throw new IllegalArgumentException("Layer share must be positive: " + name);
+            this.name = name;
+            this.template = template;
+            this.dx = dx;
+            this.dy = dy;
+            this.share = share;
+            this.z = z;
+        }
+
+        public int getOffsetX() {
+            return template.getOffsetX() + dx;
+        }
+
+        public int getOffsetY() {
+            return template.getOffsetY() + dy;
+        }
+    }
+}
@@ -2,12 +2,18 @@ package darkkeks.pixel2020
 
 import java.net.URI
 import java.nio.ByteBuffer
-import java.util.concurrent.Future
+import java.util.concurrent.CompletableFuture
 import javax.websocket.*
 
 interface MessageHandler {
+    /**
+     * Whether binary (board feed) messages should be delivered at all.
+     * When false, frames are dropped as they arrive without being assembled or decoded.
+     */
+    val acceptsBinary: Boolean
+
     fun handleMessage(message: String)
-    fun handleBinaryMessage(buffer: ByteArray)
+    fun handleBinaryMessage(buffer: ByteBuffer)
     fun onClose()
 }
 
@@ -17,21 +23,28 @@ class WebsocketClient(private val endpoint: String, private val handler: Message
     val logger = createLogger<WebsocketClient>()
 
     private var session: Session? = null
+    private var partial: ByteBuffer? = null
+
+    /**
+     * Set while the rest of a message whose earlier parts were dropped is being skipped.
+     */
+    private var discarding = false
 
     fun connect() {
-        val container = ContainerProvider.getWebSocketContainer()
-        session = container.connectToServer(this, URI(endpoint))
+        session = WebsocketContainer.container.connectToServer(this, URI(endpoint))
     }
 
     @OnOpen
     fun onOpen(userSession: Session?) {
         logger.info("On open")
+        WebsocketContainer.openSessions.incrementAndGet()
         this.session = userSession
     }
 
     @OnClose
     fun onClose(userSession: Session, reason: CloseReason) {
         logger.info("On close")
+        WebsocketContainer.openSessions.decrementAndGet()
         handler.onClose()
         this.session = null
     }
@@ -42,13 +55,64 @@ class WebsocketClient(private val endpoint: String, private val handler: Message
     }
 
     @OnMessage
-    fun onBinaryMessage(b: ByteArray) {
-        handler.handleBinaryMessage(b)
+    fun onBinaryMessage(part: ByteBuffer, last: Boolean) {
+        if (discarding || !handler.acceptsBinary) {
+            WebsocketContainer.droppedFrames.increment()
+            partial = null
+            // A handler installed mid-message must not get the tail decoded as a whole frame
+            discarding = !last
+            return
+        }
+
+        val pending = partial
+        if (pending == null && last) {
+            handler.handleBinaryMessage(part)
+            return
+        }
+
+        val buffer = append(pending, part)
+        if (last) {
+            partial = null
+            WebsocketContainer.reassembledMessages.increment()
+            buffer.flip()
+            handler.handleBinaryMessage(buffer)
+        } else {
+            partial = buffer
+        }
+    }
+
+    private fun append(pending: ByteBuffer?, part: ByteBuffer): ByteBuffer {
+        if (pending != null && pending.remaining() >= part.remaining()) {
+            return pending.put(part)
+        }
+        val capacity = maxOf((pending?.position() ?: 0) + part.remaining(), (pending?.capacity() ?: 0) * 2)
+        val buffer = ByteBuffer.allocate(capacity)
+        WebsocketContainer.reassemblyBytes.add(capacity.toLong())
+        if (pending != null) {
+            pending.flip()
+            buffer.put(pending)
+        }
+        return buffer.put(part)
     }
 
-    fun sendBinary(buffer: ByteBuffer): Future<Void> {
-        val s = session ?: throw IllegalStateException("No session")
-        return s.asyncRemote.sendBinary(buffer)
+    /**
+     * Sends the buffer without blocking, the result completes from the container's send callback.
+     */
+    fun sendBinary(buffer: ByteBuffer): CompletableFuture<Void> {
+        val result = CompletableFuture<Void>()
+        val s = session
+        if (s == null) {
+            result.completeExceptionally(IllegalStateException("No session"))
+            return result
+        }
+        s.asyncRemote.sendBinary(buffer) { sendResult ->
+            if (sendResult.isOK) {
+                result.complete(null)
+            } else {
+                result.completeExceptionally(sendResult.exception)
+            }
+        }
+        return result
     }
 
     fun close() {
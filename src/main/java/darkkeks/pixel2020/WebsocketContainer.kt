@@ -0,0 +1,63 @@
+package darkkeks.pixel2020
+
+import org.glassfish.tyrus.client.ClientManager
+import org.glassfish.tyrus.client.ClientProperties
+import org.glassfish.tyrus.client.ThreadPoolConfig
+import org.glassfish.tyrus.container.grizzly.client.GrizzlyClientProperties
+import java.lang.management.ManagementFactory
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.LongAdder
+import javax.websocket.WebSocketContainer
+
+/**
+ * Single websocket client container shared by all accounts.
+ *
+ * Every container otherwise starts its own selector and worker threads, so per-account containers
+ * cost a few threads per idle socket. Here all sessions share a fixed set of selector threads and a
+ * bounded worker pool, and the incoming buffer is sized for the board feed instead of Tyrus' 4MB default.
+ */
+object WebsocketContainer {
+
+    private const val THREAD_PREFIX = "ws-"
+    private const val WORKER_THREADS = 8
+    private const val INCOMING_BUFFER_SIZE = 1 shl 20
+    private const val SEND_TIMEOUT_MILLIS = 10_000L
+
+    val container: WebSocketContainer by lazy { create() }
+
+    val openSessions = AtomicInteger()
+    val droppedFrames = LongAdder()
+    val reassembledMessages = LongAdder()
+    val reassemblyBytes = LongAdder()
+
+    private fun create(): WebSocketContainer {
+        val selectors = Runtime.getRuntime().availableProcessors()
+        val client = ClientManager.createClient()
+        client.properties[ClientProperties.SHARED_CONTAINER] = true
+        client.properties[ClientProperties.INCOMING_BUFFER_SIZE] = INCOMING_BUFFER_SIZE
+        client.properties[GrizzlyClientProperties.SELECTOR_THREAD_POOL_CONFIG] = ThreadPoolConfig.defaultConfig()
+            .setPoolName(THREAD_PREFIX + "selector")
+            .setCorePoolSize(selectors)
+            .setMaxPoolSize(selectors)
+            .setDaemon(true)
+        client.properties[GrizzlyClientProperties.WORKER_THREAD_POOL_CONFIG] = ThreadPoolConfig.defaultConfig()
+            .setPoolName(THREAD_PREFIX + "worker")
+            .setCorePoolSize(WORKER_THREADS)
+            .setMaxPoolSize(WORKER_THREADS)
+            .setDaemon(true)
+        client.setDefaultMaxBinaryMessageBufferSize(INCOMING_BUFFER_SIZE)
+        client.setDefaultMaxTextMessageBufferSize(INCOMING_BUFFER_SIZE)
+        client.setAsyncSendTimeout(SEND_TIMEOUT_MILLIS)
+        return client
+    }
+
+    fun stats(): String {
+        val threads = ManagementFactory.getThreadMXBean().threadCount
+        val websocketThreads = Thread.getAllStackTraces().keys.count { it.name.startsWith(THREAD_PREFIX) }
+        return String.format(
+            "threads: %d (websocket: %d), sessions: %d, dropped frames: %d, reassembled: %d (%d bytes)",
+            threads, websocketThreads, openSessions.get(),
+            droppedFrames.sum(), reassembledMessages.sum(), reassemblyBytes.sum()
+        )
+    }
+}
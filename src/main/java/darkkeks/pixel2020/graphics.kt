@@ -8,27 +8,51 @@ import java.awt.event.MouseWheelEvent
 import java.awt.geom.AffineTransform
 import java.awt.geom.NoninvertibleTransformException
 import java.awt.geom.Point2D
+import java.awt.geom.Rectangle2D
 import java.awt.image.BufferedImage
+import java.awt.image.DataBufferInt
 import java.awt.image.RescaleOp
 import javax.swing.JFrame
 import javax.swing.JPanel
+import javax.swing.Timer
 import javax.swing.WindowConstants
+import kotlin.math.ceil
+import kotlin.math.floor
 import kotlin.math.sqrt
 
 class Canvas(
     val windowWidth: Int,
     val windowHeight: Int,
-    initialCanvas: BufferedImage
+    private val board: Board
 ) : JPanel() {
 
     val transform = AffineTransform()
 
-    var canvas: BufferedImage = initialCanvas
-    var template: Template? = null
+    val canvas = BufferedImage(FIELD_WIDTH, FIELD_HEIGHT, BufferedImage.TYPE_INT_RGB)
+    private val pixels = (canvas.raster.dataBuffer as DataBufferInt).data
+
+    var templates: TemplateSet? = null
+        set(value) {
+            field = value
+            overlay = null
+        }
 
     var templateOpacity = 0.7
+        set(value) {
+            field = value
+            overlay = null
+        }
+
     var isTemplateVisible = true
 
+    /**
+     * Template layers with opacity applied, recomputed only when templates or opacity change.
+     */
+    private var overlay: List<Pair<TemplateSet.Layer, BufferedImage>>? = null
+
+    private val dirtyTiles = LongArray((Board.TILE_COUNT + 63) / 64)
+    private var rasterized = false
+
     init {
         repaint()
     }
@@ -39,30 +63,116 @@ class Canvas(
         super.paintComponent(g)
         if (g !is Graphics2D) return
 
-        g.drawImage(canvas, transform, null)
+        val clip = g.clipBounds ?: Rectangle(0, 0, width, height)
+        val visible = try {
+            transform.createInverse().createTransformedShape(clip).bounds2D
+        } catch (e: NoninvertibleTransformException) {
+            return
+        }
+
+        drawClipped(g, canvas, 0, 0, visible)
 
         if (isTemplateVisible) {
-            template?.also { template ->
-                val filter = RescaleOp(floatArrayOf(1f, 1f, 1f, templateOpacity.toFloat()), FloatArray(4), null)
-                val filtered = filter.filter(template.image, null)
-                val templateTransform = AffineTransform(transform)
-                templateTransform.translate(template.offset.x.toDouble(), template.offset.y.toDouble())
-                g.drawImage(filtered, templateTransform, null)
+            for ((layer, image) in getOverlay()) {
+                drawClipped(g, image, layer.offsetX, layer.offsetY, visible)
+            }
+        }
+    }
+
+    /**
+     * Draws only the part of the image that is inside the visible board area,
+     * so that drawing at high zoom doesn't scale the whole image.
+     */
+    private fun drawClipped(g: Graphics2D, image: BufferedImage, x: Int, y: Int, visible: Rectangle2D) {
+        val fromX = maxOf(floor(visible.minX).toInt() - x, 0)
+        val fromY = maxOf(floor(visible.minY).toInt() - y, 0)
+        val toX = minOf(ceil(visible.maxX).toInt() - x, image.width)
+        val toY = minOf(ceil(visible.maxY).toInt() - y, image.height)
+        if (fromX >= toX || fromY >= toY) return
+
+        val imageTransform = AffineTransform(transform)
+        imageTransform.translate((x + fromX).toDouble(), (y + fromY).toDouble())
+        g.drawImage(image.getSubimage(fromX, fromY, toX - fromX, toY - fromY), imageTransform, null)
+    }
+
+    private fun getOverlay(): List<Pair<TemplateSet.Layer, BufferedImage>> {
+        overlay?.let { return it }
+        val filter = RescaleOp(floatArrayOf(1f, 1f, 1f, templateOpacity.toFloat()), FloatArray(4), null)
+        val result = templates?.layers?.map { it to filter.filter(it.template.image, null) } ?: emptyList()
+        overlay = result
+        return result
+    }
+
+    /**
+     * Updates the canvas from the board tiles written since the previous call, the whole board on the first call.
+     * Called on the event dispatch thread.
+     *
+     * @return changed areas in board coordinates, runs of adjacent dirty tiles within a tile row
+     */
+    fun rasterize(): List<Rectangle> {
+        board.drainDirtyTiles(dirtyTiles)
+        if (!rasterized) {
+            dirtyTiles.fill(-1L)
+            rasterized = true
+        }
+
+        val regions = ArrayList<Rectangle>()
+        var tile = 0
+        while (tile < Board.TILE_COUNT) {
+            if (!isDirty(tile)) {
+                tile++
+                continue
+            }
+            val tileY = tile / Board.TILES_X
+            val fromTileX = tile % Board.TILES_X
+            var toTileX = fromTileX
+            while (toTileX < Board.TILES_X && isDirty(tileY * Board.TILES_X + toTileX)) {
+                toTileX++
             }
+
+            val fromX = fromTileX * Board.TILE_SIZE
+            val fromY = tileY * Board.TILE_SIZE
+            val toX = minOf(toTileX * Board.TILE_SIZE, FIELD_WIDTH)
+            val toY = minOf(fromY + Board.TILE_SIZE, FIELD_HEIGHT)
+            for (y in fromY until toY) {
+                for (x in fromX until toX) {
+                    val cell = x + y * FIELD_WIDTH
+                    pixels[cell] = Colors.RGB[board.get(cell)]
+                }
+            }
+            regions.add(Rectangle(fromX, fromY, toX - fromX, toY - fromY))
+            tile = tileY * Board.TILES_X + toTileX
         }
+        return regions
     }
 
-    fun setPixel(x: Int, y: Int, color: Color) {
-        canvas.setRGB(x, y, color.rgb);
+    private fun isDirty(tile: Int) = dirtyTiles[tile ushr 6] and (1L shl tile) != 0L
+
+    /**
+     * Paints the screen area covering a rectangle in board coordinates right away. Separate areas are painted
+     * separately, while [repaint] would merge them into their bounding box.
+     */
+    fun paintBoard(area: Rectangle) {
+        val screen = transform.createTransformedShape(area).bounds
+        screen.grow(1, 1)
+        val visible = screen.intersection(Rectangle(0, 0, width, height))
+        if (!visible.isEmpty) {
+            paintImmediately(visible)
+        }
     }
 }
 
-class BoardGraphics(initialCanvas: BufferedImage) {
+/**
+ * Swing view of the [Board]. Board is the source of truth, the view polls its sequence on a Swing timer
+ * and rasterizes the tiles written since the previous frame, so rendering never runs on the observer feed thread.
+ * Changes are painted at most [FRAME_RATE] times per second, every changed area separately.
+ */
+class BoardGraphics(private val board: Board) : BoardView {
 
     private val title = "Pixel2020"
     private val zoomStep = sqrt(2.0)
 
-    private val canvas = Canvas(700, 400, initialCanvas)
+    private val canvas = Canvas(700, 400, board)
 
     private var offsetX = 0.0
     private var offsetY = 0.0
@@ -75,8 +185,7 @@ class BoardGraphics(initialCanvas: BufferedImage) {
     private var dragWithAlt = false
 
     private var frame: JFrame
-
-    val image get() = canvas.canvas
+    private var renderedSequence = -1L
 
     init {
         frame = JFrame(title).apply {
@@ -91,6 +200,20 @@ class BoardGraphics(initialCanvas: BufferedImage) {
 //        setupKeyListener()
         setupMouseWheelListener()
         setupMouseListener()
+
+        Timer(1000 / FRAME_RATE) { refresh() }.start()
+    }
+
+    private fun refresh() {
+        val sequence = board.sequence
+        if (sequence == renderedSequence) return
+        renderedSequence = sequence
+        val regions = canvas.rasterize()
+        if (regions.size > MAX_REGIONS) {
+            canvas.repaint()
+        } else {
+            regions.forEach { canvas.paintBoard(it) }
+        }
     }
 
     private fun setupMouseWheelListener() {
@@ -195,18 +318,19 @@ class BoardGraphics(initialCanvas: BufferedImage) {
         canvas.transform.translate(-offsetX, -offsetY)
     }
 
-    fun updateBoard(image: BufferedImage) {
-        canvas.canvas = image
-        canvas.repaint()
+    override fun updateTemplate(templates: TemplateSet) {
+        EventQueue.invokeLater {
+            canvas.templates = templates
+            canvas.repaint()
+        }
     }
 
-    fun updateTemplate(template: Template) {
-        canvas.template = template
-        canvas.repaint()
-    }
+    companion object {
+        private const val FRAME_RATE = 20
 
-    fun setPixel(x: Int, y: Int, color: Color) {
-        canvas.setPixel(x, y, color)
-        canvas.repaint()
+        /**
+         * Above this many changed areas a single full repaint is cheaper.
+         */
+        private const val MAX_REGIONS = 64
     }
 }
@@ -0,0 +1,330 @@
+package darkkeks.pixel2020
+
+import com.google.gson.JsonArray
+import com.google.gson.JsonObject
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import org.glassfish.tyrus.spi.ServerContainer
+import org.glassfish.tyrus.spi.ServerContainerFactory
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.charset.StandardCharsets
+import java.util.BitSet
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
+import javax.websocket.CloseReason
+import javax.websocket.Endpoint
+import javax.websocket.EndpointConfig
+import javax.websocket.MessageHandler
+import javax.websocket.Session
+import javax.websocket.server.ServerEndpointConfig
+
+data class SimulatorConfig(
+    /**
+     * Address the HTTP server binds to and the host advertised to the bot. The websocket server
+     * listens on all interfaces, since the Tyrus Grizzly container has no bind address setting.
+     */
+    val host: String = "127.0.0.1",
+    val httpPort: Int = 8080,
+    val websocketPort: Int = 8081,
+    /**
+     * Cooldown between placements of a single account.
+     */
+    val ttlMillis: Int = 1000,
+    /**
+     * Random pixels placed by other players.
+     */
+    val churnPerSecond: Double = 100.0,
+    /**
+     * Pixels overwriting cells recently placed by simulated accounts with another color.
+     */
+    val griefPerSecond: Double = 10.0,
+    val frozenCells: Int = 0,
+    /**
+     * Interval between board feed frames.
+     */
+    val flushMillis: Long = 100
+)
+
+/**
+ * Local stand-in for the game server, to run the bot end to end without the live service.
+ *
+ * Serves `/start` and `/data` over HTTP and the websocket protocol: binary placements from accounts,
+ * per-account cooldowns (`t`=2 messages), `DOUBLE_CONNECT` when an account connects twice, restarts (`t`=3)
+ * and a board feed of 12-byte updates sent to every session. Board churn and griefers are synthetic.
+ *
+ * Any signature is accepted, so the bot can be pointed at it with `api=http://127.0.0.1:8080/api`
+ * and `urls.txt` lines like `?vk_user_id=1`. Since the websocket port is open on every interface,
+ * run it on a trusted network or behind a firewall. Started with `./gradlew simulator`.
+ */
+class Simulator(val config: SimulatorConfig = SimulatorConfig()) {
+
+    private val logger = createLogger<Simulator>()
+
+    private val board = ByteArray(PIXEL_COUNT)
+    private val frozen = BitSet(PIXEL_COUNT)
+    private val accounts: MutableMap<String, Account> = ConcurrentHashMap()
+    private val sessions: MutableSet<Session> = ConcurrentHashMap.newKeySet()
+
+    private var feed = ByteBuffer.allocate(12 * 1024).order(ByteOrder.LITTLE_ENDIAN)
+    private val recent = IntArray(1024)
+    private var recentCount = 0
+    private var churnCarry = 0.0
+    private var griefCarry = 0.0
+
+    private val scheduler = Executors.newSingleThreadScheduledExecutor()
+    private var httpExecutor: ExecutorService? = null
+    private var http: HttpServer? = null
+    private var websocket: ServerContainer? = null
+
+    val placed = LongAdder()
+    val rejected = LongAdder()
+
+    val apiUrl get() = "http://${config.host}:${config.httpPort}/api"
+
+    private class Account(val userId: Int) {
+        @Volatile
+        var session: Session? = null
+
+        @Volatile
+        var readyAt = System.nanoTime()
+    }
+
+    fun start() {
+        val random = ThreadLocalRandom.current()
+        for (cell in 0 until PIXEL_COUNT) {
+            board[cell] = random.nextInt(Colors.PALETTE.size).toByte()
+        }
+        repeat(config.frozenCells) { frozen.set(random.nextInt(PIXEL_COUNT)) }
+
+        val httpExecutor = Executors.newFixedThreadPool(4)
+        this.httpExecutor = httpExecutor
+        http = HttpServer.create(InetSocketAddress(config.host, config.httpPort), 0).apply {
+            createContext("/api/start") { handleStart(it) }
+            createContext("/api/data") { handleData(it) }
+            executor = httpExecutor
+            start()
+        }
+        val endpoint = ServerEndpointConfig.Builder.create(SimulatorEndpoint::class.java, "/ws")
+            .configurator(object : ServerEndpointConfig.Configurator() {
+                override fun <T> getEndpointInstance(endpointClass: Class<T>): T =
+                    endpointClass.cast(SimulatorEndpoint(this@Simulator))
+            })
+            .build()
+        websocket = ServerContainerFactory.createServerContainer().apply {
+            addEndpoint(endpoint)
+            start("/", config.websocketPort)
+        }
+
+        scheduler.scheduleAtFixedRate(::tick, config.flushMillis, config.flushMillis, TimeUnit.MILLISECONDS)
+        var lastPlaced = 0L
+        scheduler.scheduleAtFixedRate({
+            val total = placed.sum()
+            logger.info("Sessions: {}, placed: {}/s, rejected: {}", sessions.size, total - lastPlaced, rejected.sum())
+            lastPlaced = total
+        }, 1, 1, TimeUnit.SECONDS)
+
+        logger.info("Simulator started, api: {}, websocket listens on all interfaces on port {}",
+            apiUrl, config.websocketPort)
+    }
+
+    fun stop() {
+        scheduler.shutdownNow()
+        websocket?.stop()
+        http?.stop(0)
+        httpExecutor?.shutdownNow()
+    }
+
+    /**
+     * Asks every connected account to reconnect, like the live server does on restart.
+     */
+    fun restart() {
+        sessions.forEach { send(it, message(3, null)) }
+    }
+
+    private fun handleStart(exchange: HttpExchange) {
+        val data = JsonObject()
+        data.addProperty("url", "ws://${config.host}:${config.websocketPort}/ws")
+        data.addProperty("data", "$apiUrl/data")
+        val response = JsonObject()
+        response.add("response", data)
+        respond(exchange, response.toString().toByteArray(StandardCharsets.UTF_8))
+    }
+
+    private fun handleData(exchange: HttpExchange) {
+        val tail = StringBuilder()
+        var cell = frozen.nextSetBit(0)
+        while (cell >= 0) {
+            tail.append(cell).append(',')
+            cell = frozen.nextSetBit(cell + 1)
+        }
+        val tailBytes = tail.toString().toByteArray(StandardCharsets.US_ASCII)
+
+        val body = ByteArray(PIXEL_COUNT + tailBytes.size)
+        synchronized(this) {
+            for (i in 0 until PIXEL_COUNT) {
+                val id = board[i].toInt()
+                body[i] = (if (id < 10) '0' + id else 'a' + (id - 10)).toByte()
+            }
+        }
+        System.arraycopy(tailBytes, 0, body, PIXEL_COUNT, tailBytes.size)
+        respond(exchange, body)
+    }
+
+    private fun respond(exchange: HttpExchange, body: ByteArray) {
+        exchange.sendResponseHeaders(200, body.size.toLong())
+        exchange.responseBody.use { it.write(body) }
+    }
+
+    internal fun onOpen(session: Session) {
+        val signature = session.queryString ?: ""
+        val account = accounts.computeIfAbsent(signature) {
+            Account(session.requestParameterMap["vk_user_id"]?.firstOrNull()?.toIntOrNull() ?: signature.hashCode())
+        }
+        account.session?.let { previous ->
+            if (previous.isOpen) send(previous, "DOUBLE_CONNECT")
+        }
+        account.session = session
+        session.userProperties[ACCOUNT] = account
+        sessions.add(session)
+
+        val cooldown = JsonObject()
+        cooldown.addProperty("ttl", config.ttlMillis)
+        cooldown.addProperty("wait", maxOf(TimeUnit.NANOSECONDS.toMillis(account.readyAt - System.nanoTime()), 0))
+        send(session, message(2, cooldown))
+    }
+
+    internal fun onClose(session: Session) {
+        sessions.remove(session)
+    }
+
+    internal fun onPlace(session: Session, buffer: ByteBuffer) {
+        val account = session.userProperties[ACCOUNT] as? Account ?: return
+        if (buffer.remaining() < 4) return
+
+        val value = buffer.order(ByteOrder.LITTLE_ENDIAN).getInt(buffer.position())
+        if (value < 0) return
+        val cell = value % PIXEL_COUNT
+        val color = value / PIXEL_COUNT % Colors.PALETTE.size
+
+        val now = System.nanoTime()
+        val wait = account.readyAt - now
+        if (wait > 0 || frozen.get(cell)) {
+            rejected.increment()
+            val cooldown = JsonObject()
+            cooldown.addProperty("wait", maxOf(TimeUnit.NANOSECONDS.toMillis(wait), 0))
+            send(session, message(2, cooldown))
+            return
+        }
+
+        account.readyAt = now + TimeUnit.MILLISECONDS.toNanos(config.ttlMillis.toLong())
+        synchronized(this) {
+            apply(cell, color, account.userId)
+            recent[recentCount++ % recent.size] = cell
+        }
+        placed.increment()
+    }
+
+    private fun tick() {
+        val random = ThreadLocalRandom.current()
+        val frame: ByteBuffer
+        synchronized(this) {
+            churnCarry += config.churnPerSecond * config.flushMillis / 1000
+            while (churnCarry >= 1) {
+                churnCarry--
+                apply(random.nextInt(PIXEL_COUNT), random.nextInt(Colors.PALETTE.size), -random.nextInt(1, 1000))
+            }
+
+            griefCarry += config.griefPerSecond * config.flushMillis / 1000
+            while (griefCarry >= 1) {
+                griefCarry--
+                if (recentCount == 0) continue
+                val cell = recent[random.nextInt(minOf(recentCount, recent.size))]
+                val color = (board[cell] + random.nextInt(1, Colors.PALETTE.size)) % Colors.PALETTE.size
+                apply(cell, color, -1000 - random.nextInt(10))
+            }
+
+            if (feed.position() == 0) return
+            feed.flip()
+            frame = ByteBuffer.allocate(feed.remaining()).put(feed)
+            frame.flip()
+            feed.clear()
+        }
+
+        sessions.forEach { session ->
+            if (session.isOpen) session.asyncRemote.sendBinary(frame.duplicate())
+        }
+    }
+
+    /**
+     * Must be called while holding the simulator lock.
+     */
+    private fun apply(cell: Int, color: Int, userId: Int) {
+        board[cell] = color.toByte()
+        if (feed.remaining() < 12) {
+            feed.flip()
+            feed = ByteBuffer.allocate(feed.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN).put(feed)
+        }
+        feed.putInt(cell + PIXEL_COUNT * color).putInt(userId).putInt(0)
+    }
+
+    private fun send(session: Session, text: String) {
+        if (session.isOpen) session.asyncRemote.sendText(text)
+    }
+
+    private fun message(type: Int, value: JsonObject?): String {
+        val message = JsonObject()
+        message.addProperty("t", type)
+        message.add("v", value)
+        val batch = JsonArray()
+        batch.add(message)
+        val wrapper = JsonObject()
+        wrapper.addProperty("t", 12)
+        wrapper.add("v", batch)
+        return wrapper.toString()
+    }
+
+    companion object {
+        private const val ACCOUNT = "account"
+    }
+}
+
+/**
+ * Websocket endpoint of a single session, created for its [Simulator] by the endpoint configurator.
+ */
+class SimulatorEndpoint(private val simulator: Simulator) : Endpoint() {
+
+    override fun onOpen(session: Session, config: EndpointConfig) {
+        session.addMessageHandler(object : MessageHandler.Whole<ByteBuffer> {
+            override fun onMessage(message: ByteBuffer) {
+                simulator.onPlace(session, message)
+            }
+        })
+        simulator.onOpen(session)
+    }
+
+    override fun onClose(session: Session, closeReason: CloseReason) {
+        simulator.onClose(session)
+    }
+}
+
+/**
+ * Runs the simulator until killed. Ports, cooldown, churn and griefing are configured
+ * with the `port`, `wsport`, `ttl`, `churn` and `grief` environment variables.
+ */
+fun main() {
+    val defaults = SimulatorConfig()
+    val simulator = Simulator(SimulatorConfig(
+        httpPort = System.getenv("port")?.toInt() ?: defaults.httpPort,
+        websocketPort = System.getenv("wsport")?.toInt() ?: defaults.websocketPort,
+        ttlMillis = System.getenv("ttl")?.toInt() ?: defaults.ttlMillis,
+        churnPerSecond = System.getenv("churn")?.toDouble() ?: defaults.churnPerSecond,
+        griefPerSecond = System.getenv("grief")?.toDouble() ?: defaults.griefPerSecond
+    ))
+    simulator.start()
+}
@@ -0,0 +1,176 @@
+package darkkeks.pixel2019;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static darkkeks.pixel2020.PixelApiKt.FIELD_WIDTH;
+import static darkkeks.pixel2020.PixelApiKt.PIXEL_COUNT;
+
+/**
+ * Compares {@link CellHeap} with the structure the queue used before it, a {@code TreeSet} of points
+ * ordered through a {@code ConcurrentHashMap} from point to random priority. Measures a full rebuild
+ * followed by draining, and the steady state of the pixel stream (adds and removes interleaved with polls).
+ * Run with {@code ./gradlew benchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CellHeapBenchmark {
+
+    private static final int STREAM_OPERATIONS = 1_000_000;
+
+    private long[] priority;
+    private int[] operations;
+
+    private CellHeap heap;
+    private PointQueue points;
+
+    /**
+     * The queue before {@link CellHeap}: points are allocated for every operation
+     * and every comparison looks both priorities up in the map.
+     */
+    private static class PointQueue {
+        private final Map<Point, Integer> order = new ConcurrentHashMap<>();
+        private final TreeSet<Point> queue = new TreeSet<>(Comparator.comparingInt(p -> order.get(p)));
+
+        PointQueue(long[] priority) {
+            for (int cell = 0; cell < PIXEL_COUNT; ++cell) {
+                order.put(point(cell), (int) priority[cell]);
+            }
+        }
+
+        private static Point point(int cell) {
+            return new Point(cell % FIELD_WIDTH, cell / FIELD_WIDTH);
+        }
+
+        void add(int cell) {
+            queue.add(point(cell));
+        }
+
+        void remove(int cell) {
+            queue.remove(point(cell));
+        }
+
+        Point pop() {
+            if (queue.isEmpty()) return null;
+            Point result = queue.first();
+            queue.remove(result);
+            return result;
+        }
+
+        void clear() {
+            queue.clear();
+        }
+    }
+
+    private static class Point {
+        private final int x;
+        private final int y;
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Point point = (Point) o;
+            return x == point.x &&
+                    y == point.y;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(x, y);
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        priority = new long[PIXEL_COUNT];
+        for (int cell = 0; cell < PIXEL_COUNT; ++cell) {
+            priority[cell] = ThreadLocalRandom.current().nextInt();
+        }
+        operations = new int[STREAM_OPERATIONS];
+        for (int i = 0; i < STREAM_OPERATIONS; ++i) {
+            operations[i] = ThreadLocalRandom.current().nextInt(PIXEL_COUNT);
+        }
+        heap = new CellHeap(priority);
+        points = new PointQueue(priority);
+    }
+
+    @Setup(Level.Iteration)
+    public void clear() {
+        heap.clear();
+        points.clear();
+    }
+
+    @Benchmark
+    public void heapFillAndDrain(Blackhole blackhole) {
+        for (int cell = 0; cell < PIXEL_COUNT; ++cell) {
+            heap.add(cell);
+        }
+        int cell;
+        while ((cell = heap.poll()) >= 0) {
+            blackhole.consume(cell);
+        }
+    }
+
+    @Benchmark
+    public void pointsFillAndDrain(Blackhole blackhole) {
+        for (int cell = 0; cell < PIXEL_COUNT; ++cell) {
+            points.add(cell);
+        }
+        Point point;
+        while ((point = points.pop()) != null) {
+            blackhole.consume(point);
+        }
+    }
+
+    @Benchmark
+    public void heapStream(Blackhole blackhole) {
+        for (int i = 0; i < operations.length; ++i) {
+            int cell = operations[i];
+            switch (i % 3) {
+                case 0:
+                    heap.add(cell);
+                    break;
+                case 1:
+                    heap.remove(cell);
+                    break;
+                default:
+                    blackhole.consume(heap.poll());
+            }
+        }
+    }
+
+    @Benchmark
+    public void pointsStream(Blackhole blackhole) {
+        for (int i = 0; i < operations.length; ++i) {
+            int cell = operations[i];
+            switch (i % 3) {
+                case 0:
+                    points.add(cell);
+                    break;
+                case 1:
+                    points.remove(cell);
+                    break;
+                default:
+                    blackhole.consume(points.pop());
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package darkkeks.pixel2019;
+
+import org.junit.Test;
+
+import java.util.Comparator;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static darkkeks.pixel2020.PixelApiKt.PIXEL_COUNT;
+import static org.junit.Assert.*;
+
+public class CellHeapTest {
+
+    @Test
+    public void pollsInPriorityOrder() {
+        long[] priority = new long[PIXEL_COUNT];
+        priority[10] = 3;
+        priority[20] = 1;
+        priority[30] = 2;
+        CellHeap heap = new CellHeap(priority);
+        heap.add(10);
+        heap.add(20);
+        heap.add(30);
+
+        assertEquals(3, heap.size());
+        assertEquals(20, heap.poll());
+        assertEquals(30, heap.poll());
+        assertEquals(10, heap.poll());
+        assertEquals(-1, heap.poll());
+        assertEquals(0, heap.size());
+    }
+
+    @Test
+    public void breaksTiesByCell() {
+        CellHeap heap = new CellHeap(new long[PIXEL_COUNT]);
+        heap.add(7);
+        heap.add(3);
+        heap.add(5);
+
+        assertEquals(3, heap.poll());
+        assertEquals(5, heap.poll());
+        assertEquals(7, heap.poll());
+    }
+
+    @Test
+    public void ignoresDuplicates() {
+        CellHeap heap = new CellHeap(new long[PIXEL_COUNT]);
+        heap.add(1);
+        heap.add(1);
+        heap.append(1);
+
+        assertEquals(1, heap.size());
+        assertEquals(1, heap.poll());
+        assertEquals(-1, heap.poll());
+    }
+
+    @Test
+    public void removesArbitraryCells() {
+        long[] priority = new long[PIXEL_COUNT];
+        CellHeap heap = new CellHeap(priority);
+        for (int cell = 0; cell < 100; ++cell) {
+            priority[cell] = 100 - cell;
+            heap.add(cell);
+        }
+
+        assertTrue(heap.remove(99));
+        assertTrue(heap.remove(50));
+        assertFalse(heap.remove(50));
+        assertFalse(heap.contains(50));
+        assertTrue(heap.contains(49));
+        assertEquals(98, heap.size());
+
+        int previous = Integer.MAX_VALUE;
+        while (heap.size() > 0) {
+            int cell = heap.poll();
+            assertTrue(cell != 50 && cell != 99);
+            assertTrue(cell < previous);
+            previous = cell;
+        }
+    }
+
+    @Test
+    public void heapifiesAppendedCells() {
+        long[] priority = new long[PIXEL_COUNT];
+        CellHeap heap = new CellHeap(priority);
+        for (int cell = 0; cell < 2000; ++cell) {
+            priority[cell] = (cell * 7919L) % 2000;
+            heap.append(cell);
+        }
+        heap.heapify();
+
+        long previous = -1;
+        while (heap.size() > 0) {
+            long current = priority[heap.poll()];
+            assertTrue(current > previous);
+            previous = current;
+        }
+    }
+
+    @Test
+    public void clearResetsMembership() {
+        CellHeap heap = new CellHeap(new long[PIXEL_COUNT]);
+        heap.add(1);
+        heap.add(2);
+        heap.clear();
+
+        assertEquals(0, heap.size());
+        assertFalse(heap.contains(1));
+        heap.add(2);
+        assertEquals(2, heap.poll());
+    }
+
+    @Test
+    public void sharesPositionTable() {
+        long[] priority = new long[PIXEL_COUNT];
+        int[] position = CellHeap.newPositionTable();
+        CellHeap first = new CellHeap(priority, position);
+        CellHeap second = new CellHeap(priority, position);
+        first.add(1);
+        first.add(2);
+        second.add(3);
+        second.add(1);
+
+        assertTrue(first.contains(1));
+        assertFalse(second.contains(1));
+        assertFalse(first.contains(3));
+        assertFalse(second.remove(1));
+        assertEquals(2, first.size());
+        assertEquals(1, second.size());
+
+        assertTrue(first.remove(1));
+        second.add(1);
+        assertTrue(second.contains(1));
+        assertEquals(1, second.poll());
+        assertEquals(3, second.poll());
+        assertEquals(2, first.poll());
+    }
+
+    @Test
+    public void matchesSortedSetUnderRandomOperations() {
+        Random random = new Random(42);
+        long[] priority = new long[PIXEL_COUNT];
+        for (int cell = 0; cell < PIXEL_COUNT; ++cell) {
+            priority[cell] = random.nextInt(1000);
+        }
+        CellHeap heap = new CellHeap(priority);
+        TreeSet<Integer> reference = new TreeSet<>(Comparator
+                .<Integer>comparingLong(cell -> priority[cell])
+                .thenComparingInt(cell -> cell));
+
+        for (int i = 0; i < 200_000; ++i) {
+            int cell = random.nextInt(5000);
+            switch (random.nextInt(3)) {
+                case 0:
+                    heap.add(cell);
+                    reference.add(cell);
+                    break;
+                case 1:
+                    assertEquals(reference.remove(cell), heap.remove(cell));
+                    break;
+                default:
+                    Integer expected = reference.pollFirst();
+                    assertEquals(expected == null ? -1 : expected, heap.poll());
+            }
+            assertEquals(reference.size(), heap.size());
+        }
+    }
+}
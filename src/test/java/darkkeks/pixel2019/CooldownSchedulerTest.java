@@ -0,0 +1,59 @@
+package darkkeks.pixel2019;
+
+import darkkeks.pixel2020.BotHandler;
+import darkkeks.pixel2020.Credentials;
+import org.junit.Test;
+
+import java.net.http.HttpClient;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CooldownSchedulerTest {
+
+    private static final String READY = "{\"t\":2,\"v\":{\"wait\":0}}";
+
+    @Test
+    public void rescheduleFromFiringTaskIsNotLost() throws InterruptedException {
+        int accounts = 1000;
+        int rounds = 20;
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(4);
+        Map<BotHandler, AtomicInteger> fired = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(accounts);
+
+        CooldownScheduler scheduler = new CooldownScheduler(executor, account -> {
+            if (fired.get(account).incrementAndGet() < rounds) {
+                account.handleMessage(READY);
+            } else {
+                done.countDown();
+            }
+        });
+
+        HttpClient client = HttpClient.newHttpClient();
+        List<BotHandler> handlers = new ArrayList<>();
+        for (int i = 0; i < accounts; ++i) {
+            BotHandler handler = new BotHandler(new Credentials("?vk_user_id=" + i), client);
+            handler.setCooldownHandler(account -> {
+                scheduler.schedule(account);
+                return null;
+            });
+            fired.put(handler, new AtomicInteger());
+            handlers.add(handler);
+        }
+        handlers.forEach(handler -> handler.handleMessage(READY));
+
+        try {
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package darkkeks.pixel2019;
+
+import darkkeks.pixel2020.Board;
+import darkkeks.pixel2020.PixelBatch;
+import darkkeks.pixel2020.Template;
+import darkkeks.pixel2020.TemplateSet;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.*;
+
+public class PixelQueueTest {
+
+    private static final int BLACK = 4;
+    private static final int WHITE = 0;
+    private static final int GRAY = 1;
+
+    private static TemplateSet blackRow(int width) {
+        BufferedImage image = new BufferedImage(width, 1, BufferedImage.TYPE_INT_ARGB);
+        for (int x = 0; x < width; ++x) {
+            image.setRGB(x, 0, 0xFF000000);
+        }
+        return TemplateSet.of(new Template(image));
+    }
+
+    private static PixelBatch batch(int cell, int color) {
+        PixelBatch batch = new PixelBatch();
+        batch.add(cell, (byte) color, (byte) 0, 0, 0);
+        return batch;
+    }
+
+    @Test
+    public void rebuildQueuesMismatchedCells() {
+        Board board = new Board();
+        board.set(1, BLACK);
+        PixelQueue queue = new PixelQueue(blackRow(3));
+        queue.rebuild(board);
+
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void streamUpdatesQueue() {
+        Board board = new Board();
+        PixelQueue queue = new PixelQueue(blackRow(3));
+        queue.rebuild(board);
+
+        queue.onPixels(batch(0, BLACK));
+        assertEquals(2, queue.size());
+        queue.onPixels(batch(0, GRAY));
+        assertEquals(3, queue.size());
+    }
+
+    @Test
+    public void doesNotRequeueCellsInFlight() {
+        Board board = new Board();
+        PixelQueue queue = new PixelQueue(blackRow(1));
+        queue.rebuild(board);
+
+        int cell = queue.pop();
+        assertEquals(0, cell);
+        queue.onPixels(batch(cell, GRAY));
+        assertTrue(queue.isEmpty());
+
+        queue.reconcile(board);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void reconcileRequeuesLostPlacements() {
+        Board board = new Board();
+        PixelQueue queue = new PixelQueue(blackRow(1));
+        queue.rebuild(board);
+
+        assertEquals(0, queue.pop());
+        queue.reconcile(board);
+        assertTrue(queue.isEmpty());
+        queue.reconcile(board);
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void confirmedPlacementsAreNotRequeued() {
+        Board board = new Board();
+        PixelQueue queue = new PixelQueue(blackRow(1));
+        queue.rebuild(board);
+
+        int cell = queue.pop();
+        board.set(cell, BLACK);
+        queue.onPixels(batch(cell, BLACK));
+        queue.reconcile(board);
+        queue.reconcile(board);
+        assertTrue(queue.isEmpty());
+
+        board.set(cell, WHITE);
+        queue.onPixels(batch(cell, WHITE));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void invalidateRevalidatesWholeTemplate() {
+        Board board = new Board();
+        PixelQueue queue = new PixelQueue(blackRow(3));
+        queue.rebuild(board);
+        while (queue.pop() >= 0) {
+        }
+
+        board.set(2, BLACK);
+        queue.invalidate();
+        queue.reconcile(board);
+        assertTrue(queue.isEmpty());
+
+        queue.invalidate();
+        queue.reconcile(board);
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void griefedCellsGoToContestedAccountsFirst() {
+        Board board = new Board();
+        board.set(0, BLACK);
+        PixelQueue queue = new PixelQueue(blackRow(2), PixelOrder.RANDOM, true);
+        queue.rebuild(board);
+
+        queue.onPixels(batch(0, GRAY));
+        assertEquals(2, queue.size());
+        assertEquals(0, queue.pop(true));
+        assertEquals(1, queue.pop(true));
+    }
+}
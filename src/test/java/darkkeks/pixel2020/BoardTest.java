@@ -0,0 +1,40 @@
+package darkkeks.pixel2020;
+
+import org.junit.Test;
+
+import static darkkeks.pixel2020.PixelApiKt.PIXEL_COUNT;
+import static org.junit.Assert.*;
+
+public class BoardTest {
+
+    @Test
+    public void snapshotKeepsPixelsWrittenWhileFetching() {
+        Board board = new Board();
+        board.expectSnapshot();
+        board.set(5, 3);
+
+        byte[] snapshot = new byte[PIXEL_COUNT];
+        snapshot[5] = 1;
+        snapshot[6] = 2;
+        board.load(snapshot);
+
+        assertEquals(3, board.get(5));
+        assertEquals(2, board.get(6));
+
+        board.set(5, 7);
+        board.load(snapshot);
+        assertEquals(1, board.get(5));
+    }
+
+    @Test
+    public void writesBumpSequence() {
+        Board board = new Board();
+        long sequence = board.getSequence();
+        PixelBatch batch = new PixelBatch();
+        batch.add(1, (byte) 2, (byte) 0, 0, 0);
+        board.set(batch);
+
+        assertTrue(board.getSequence() > sequence);
+        assertEquals(2, board.get(1));
+    }
+}
@@ -0,0 +1,54 @@
+package darkkeks.pixel2020;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HealthCheckTest {
+
+    private final Credentials first = new Credentials("?vk_user_id=1");
+    private final Credentials second = new Credentials("?vk_user_id=2");
+
+    private static void expireAll(HealthCheck healthCheck) {
+        for (int i = 0; i <= HealthCheck.TIMEOUT_SECONDS; ++i) {
+            healthCheck.tick();
+        }
+    }
+
+    @Test
+    public void unconfirmedPlacementsExpire() {
+        HealthCheck healthCheck = new HealthCheck();
+        healthCheck.onPlace(new Pixel(1, 2, 3), first);
+        expireAll(healthCheck);
+
+        assertEquals(1, healthCheck.stats(first).getExpired());
+    }
+
+    @Test
+    public void failedSendsDoNotExpire() {
+        HealthCheck healthCheck = new HealthCheck();
+        Pixel pixel = new Pixel(1, 2, 3);
+        healthCheck.onPlace(pixel, first);
+        healthCheck.onSendFailed(pixel, first);
+        expireAll(healthCheck);
+
+        AccountStats stats = healthCheck.stats(first);
+        assertEquals(0, stats.getExpired());
+        assertEquals(0, stats.getPlaced());
+    }
+
+    @Test
+    public void failedSendKeepsPlacementOfAnotherAccount() {
+        HealthCheck healthCheck = new HealthCheck();
+        Pixel pixel = new Pixel(1, 2, 3);
+        healthCheck.onPlace(pixel, first);
+        healthCheck.onPlace(pixel, second);
+        healthCheck.onSendFailed(pixel, first);
+
+        PixelBatch batch = new PixelBatch();
+        batch.add(1 + 2 * PixelApiKt.FIELD_WIDTH, (byte) 3, (byte) 0, 0, 0);
+        healthCheck.onPixels(batch);
+
+        assertEquals(1, healthCheck.stats(second).getConfirmed());
+    }
+}
@@ -0,0 +1,82 @@
+package darkkeks.pixel2020;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PendingPlacementsTest {
+
+    private final AccountStats account = new AccountStats();
+
+    @Test
+    public void putsAndFinds() {
+        PendingPlacements pending = new PendingPlacements();
+        pending.put(42, account, 100, 7);
+
+        int slot = pending.find(42);
+        assertTrue(slot >= 0);
+        assertEquals(100, pending.placedAt(slot));
+        assertEquals(7, pending.deadline(slot));
+        assertEquals(-1, pending.find(43));
+        assertEquals(1, pending.getSize());
+    }
+
+    @Test
+    public void replacesExistingKey() {
+        PendingPlacements pending = new PendingPlacements();
+        pending.put(42, account, 100, 7);
+        pending.put(42, account, 200, 8);
+
+        assertEquals(1, pending.getSize());
+        assertEquals(200, pending.placedAt(pending.find(42)));
+    }
+
+    @Test
+    public void keepsProbeChainsAfterRemoval() {
+        PendingPlacements pending = new PendingPlacements();
+        for (long key = 0; key < 500; ++key) {
+            pending.put(key, account, key, 0);
+        }
+        for (long key = 0; key < 500; key += 2) {
+            pending.removeAt(pending.find(key));
+        }
+
+        assertEquals(250, pending.getSize());
+        for (long key = 0; key < 500; ++key) {
+            int slot = pending.find(key);
+            if (key % 2 == 0) {
+                assertEquals(-1, slot);
+            } else {
+                assertEquals(key, pending.placedAt(slot));
+            }
+        }
+    }
+
+    @Test
+    public void matchesHashMapUnderRandomOperations() {
+        Random random = new Random(42);
+        PendingPlacements pending = new PendingPlacements();
+        Map<Long, Long> reference = new HashMap<>();
+
+        for (int i = 0; i < 200_000; ++i) {
+            long key = random.nextInt(20_000);
+            int slot = pending.find(key);
+            assertEquals(reference.containsKey(key), slot >= 0);
+            if (slot >= 0) {
+                assertEquals((long) reference.get(key), pending.placedAt(slot));
+                if (random.nextBoolean()) {
+                    pending.removeAt(slot);
+                    reference.remove(key);
+                }
+            } else {
+                pending.put(key, account, i, 0);
+                reference.put(key, (long) i);
+            }
+            assertEquals(reference.size(), pending.getSize());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package darkkeks.pixel2020;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static darkkeks.pixel2020.PixelApiKt.PIXEL_COUNT;
+import static org.junit.Assert.*;
+
+public class PixelLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysAppendedBatches() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        PixelLog log = PixelLog.open(directory, 0);
+        PixelBatch batch = new PixelBatch();
+        batch.add(1, (byte) 2, (byte) 3, 4, 5);
+        batch.add(6, (byte) 7, (byte) 3, 8, 9);
+        log.append(batch, 1000);
+        batch.clear();
+        batch.add(10, (byte) 11, (byte) 3, 12, 13);
+        log.append(batch, 2000);
+        log.close();
+
+        List<Integer> cells = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        long count = PixelLog.replay(directory, 0, replayed -> {
+            sizes.add(replayed.getSize());
+            for (int i = 0; i < replayed.getSize(); ++i) {
+                cells.add(replayed.getCell()[i]);
+            }
+        });
+
+        assertEquals(3, count);
+        assertEquals(List.of(2, 1), sizes);
+        assertEquals(List.of(1, 6, 10), cells);
+    }
+
+    @Test
+    public void deletesOldestSegmentsOverLimit() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        PixelLog.open(directory, 0).close();
+        PixelLog.open(directory, 0).close();
+
+        assertEquals(1, countSegments(directory));
+    }
+
+    @Test
+    public void rollsOverFullSegment() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        PixelLog log = PixelLog.open(directory, 2 * PixelLog.SEGMENT_SIZE);
+        long records = PixelLog.SEGMENT_SIZE / PixelLog.RECORD_SIZE + 1;
+        PixelBatch batch = new PixelBatch();
+        for (long i = 0; i < records; ++i) {
+            batch.add((int) (i % PIXEL_COUNT), (byte) 1, (byte) 0, 0, 0);
+            if (batch.getSize() == 4096) {
+                log.append(batch, 1000 + i);
+                batch.clear();
+            }
+        }
+        log.append(batch, 1000 + records);
+        log.close();
+
+        assertEquals(2, countSegments(directory));
+        assertEquals(records, PixelLog.replay(directory, 0, replayed -> {
+        }));
+    }
+
+    private static long countSegments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+}
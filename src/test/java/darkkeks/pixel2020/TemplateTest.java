@@ -0,0 +1,38 @@
+package darkkeks.pixel2020;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.*;
+
+public class TemplateTest {
+
+    @Test
+    public void cropsToOpaqueCellsAndBuildsSpans() {
+        BufferedImage image = new BufferedImage(10, 5, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(2, 1, 0xFF000000);
+        image.setRGB(3, 1, 0xFF000000);
+        image.setRGB(6, 1, 0xFFFFFFFF);
+        image.setRGB(4, 3, 0xFF000000);
+        Template template = new Template(image);
+
+        assertEquals(2, template.getOffsetX());
+        assertEquals(1, template.getOffsetY());
+        assertEquals(5, template.getWidth());
+        assertEquals(3, template.getHeight());
+
+        assertEquals(4, template.getColorId(0, 0));
+        assertEquals(Template.NONE, template.getColorId(2, 0));
+        assertEquals(0, template.getColorId(4, 0));
+        assertEquals(Template.NONE, template.getColorId(5, 0));
+
+        assertEquals(2, template.getSpanCount(0));
+        assertEquals(0, template.getSpanStart(0, 0));
+        assertEquals(2, template.getSpanEnd(0, 0));
+        assertEquals(4, template.getSpanStart(0, 1));
+        assertEquals(5, template.getSpanEnd(0, 1));
+        assertEquals(0, template.getSpanCount(1));
+        assertEquals(1, template.getSpanCount(2));
+    }
+}
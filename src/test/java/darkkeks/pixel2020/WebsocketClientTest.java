@@ -0,0 +1,79 @@
+package darkkeks.pixel2020;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WebsocketClientTest {
+
+    private static class RecordingHandler implements MessageHandler {
+        boolean accepts;
+        final List<byte[]> messages = new ArrayList<>();
+
+        @Override
+        public boolean getAcceptsBinary() {
+            return accepts;
+        }
+
+        @Override
+        public void handleMessage(String message) {
+        }
+
+        @Override
+        public void handleBinaryMessage(ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            messages.add(bytes);
+        }
+
+        @Override
+        public void onClose() {
+        }
+    }
+
+    private static ByteBuffer part(int... bytes) {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+        for (int b : bytes) {
+            buffer.put((byte) b);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void reassemblesParts() {
+        RecordingHandler handler = new RecordingHandler();
+        handler.accepts = true;
+        WebsocketClient client = new WebsocketClient("ws://localhost", handler);
+
+        client.onBinaryMessage(part(1, 2), false);
+        client.onBinaryMessage(part(3), false);
+        client.onBinaryMessage(part(4, 5), true);
+        client.onBinaryMessage(part(6), true);
+
+        assertEquals(2, handler.messages.size());
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, handler.messages.get(0));
+        assertArrayEquals(new byte[]{6}, handler.messages.get(1));
+    }
+
+    @Test
+    public void dropsTailOfMessageStartedBeforeHandlerWasInstalled() {
+        RecordingHandler handler = new RecordingHandler();
+        WebsocketClient client = new WebsocketClient("ws://localhost", handler);
+
+        client.onBinaryMessage(part(1, 2), false);
+        handler.accepts = true;
+        client.onBinaryMessage(part(3), false);
+        client.onBinaryMessage(part(4), true);
+        assertTrue(handler.messages.isEmpty());
+
+        client.onBinaryMessage(part(5), false);
+        client.onBinaryMessage(part(6), true);
+        assertEquals(1, handler.messages.size());
+        assertArrayEquals(new byte[]{5, 6}, handler.messages.get(0));
+    }
+}